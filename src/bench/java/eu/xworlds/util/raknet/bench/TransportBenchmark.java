@@ -0,0 +1,195 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import eu.xworlds.util.raknet.RaknetServer;
+import eu.xworlds.util.raknet.RaknetServerBuilder;
+import eu.xworlds.util.raknet.RaknetTransport;
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import eu.xworlds.util.raknet.protocol.UnconnectedPing;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Side by side receive throughput of the raknet transports.
+ * 
+ * <p>
+ * Starts a server on the loopback interface for each available transport and floods it with unconnected pings from several client threads. Prints the
+ * datagrams received by the raknet pipeline per second. Run with {@code mvn -Pbenchmark compile exec:java} and optional arguments
+ * {@code -Dexec.args="<seconds> <clients> <receiveBatch>"}.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class TransportBenchmark
+{
+    
+    /** the first port used by the benchmark servers */
+    private static final int PORT = 19132;
+    
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args
+     *            seconds per transport, number of client threads and receive batch size
+     * @throws Exception
+     *             thrown on network errors
+     */
+    public static void main(String[] args) throws Exception
+    {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int batch = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        
+        System.out.println(String.format("%-10s %8s %14s %14s %12s", "transport", "batch", "sent/s", "received/s", "dropped")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+        int port = PORT;
+        for (final RaknetTransport transport : new RaknetTransport[] { RaknetTransport.NIO, RaknetTransport.EPOLL, RaknetTransport.IO_URING })
+        {
+            if (!transport.isAvailable())
+            {
+                System.out.println(String.format("%-10s not available", transport)); //$NON-NLS-1$
+                continue;
+            }
+            run(transport, transport.supportsBatchedIo() ? batch : 1, new InetSocketAddress("127.0.0.1", port++), seconds, clients); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Runs the benchmark for a single transport.
+     * 
+     * @param transport
+     *            network transport
+     * @param batch
+     *            receive batch size
+     * @param address
+     *            server address
+     * @param seconds
+     *            benchmark duration
+     * @param clients
+     *            number of client threads
+     * @throws Exception
+     *             thrown on network errors
+     */
+    private static void run(RaknetTransport transport, int batch, InetSocketAddress address, int seconds, int clients) throws Exception
+    {
+        final LongAdder received = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final EventLoopGroup group = transport.newEventLoopGroup();
+        final RaknetServer server = new RaknetServerBuilder().addInterface(address).setTransport(transport).setReceiverGroup(group).setSenderGroup(group)
+                .setBatchSizes(batch, 0).addPipelineFactory(s -> new ChannelHandler[] { new CountingHandler(received) }).build();
+        try
+        {
+            // wait for bind
+            Thread.sleep(500);
+            
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            final Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; i++)
+            {
+                threads[i] = new Thread(() -> flood(address, deadline, sent), "client-" + i); //$NON-NLS-1$
+                threads[i].start();
+            }
+            for (final Thread thread : threads)
+            {
+                thread.join();
+            }
+            // let the server drain its socket buffers
+            Thread.sleep(200);
+            
+            System.out.println(String.format("%-10s %8d %14d %14d %12d", transport, Integer.valueOf(batch), Long.valueOf(sent.sum() / seconds), //$NON-NLS-1$
+                    Long.valueOf(received.sum() / seconds), Long.valueOf(server.getDroppedDatagrams())));
+        }
+        finally
+        {
+            server.close();
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+    
+    /**
+     * Sends unconnected pings till the deadline.
+     * 
+     * @param address
+     *            server address
+     * @param deadline
+     *            deadline in nano seconds
+     * @param sent
+     *            counter for sent datagrams
+     */
+    private static void flood(InetSocketAddress address, long deadline, LongAdder sent)
+    {
+        final ByteBuffer ping = ByteBuffer.allocateDirect(1 + 8 + RaknetMessage.OFFLINE_MESSAGE_DATA_ID.length);
+        ping.put(UnconnectedPing.ID).putLong(0).put(RaknetMessage.OFFLINE_MESSAGE_DATA_ID).flip();
+        try (final DatagramChannel channel = DatagramChannel.open())
+        {
+            channel.connect(address);
+            long count = 0;
+            while ((count & 0xFF) != 0 || System.nanoTime() < deadline)
+            {
+                ping.rewind();
+                channel.write(ping);
+                count++;
+            }
+            sent.add(count);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Pipeline handler counting the received raknet messages.
+     */
+    private static final class CountingHandler extends ChannelInboundHandlerAdapter
+    {
+        
+        /** the counter */
+        private final LongAdder received;
+        
+        /**
+         * Constructor.
+         * 
+         * @param received
+         *            the counter
+         */
+        CountingHandler(LongAdder received)
+        {
+            this.received = received;
+        }
+        
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            this.received.increment();
+            ReferenceCountUtil.release(msg);
+        }
+        
+    }
+    
+}
@@ -17,6 +17,9 @@
  */
 package eu.xworlds.util.raknet;
 
+import java.net.InetSocketAddress;
+
+import eu.xworlds.util.raknet.protocol.SystemAddress;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
@@ -28,6 +31,10 @@ import io.netty.channel.socket.DatagramPacket;
  * This handler asks the server listeners if the incoming traffic should be blocked. This can be used to establish some kind of spam protection.
  * </p>
  * 
+ * <p>
+ * IPv4-mapped addresses of datagrams received on dual-stack sockets are normalized to IPv4 addresses before any listener or session sees them.
+ * </p>
+ * 
  * @author mepeisen
  */
 class ConnectionHandler extends SimpleChannelInboundHandler<DatagramPacket>
@@ -44,23 +51,31 @@ class ConnectionHandler extends SimpleChannelInboundHandler<DatagramPacket>
      */
     public ConnectionHandler(RaknetServerListener[] serverListeners)
     {
+        // packets are passed to the next handler and must not be released unless they are blocked
+        super(false);
         this.listeners = serverListeners;
     }
     
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception
     {
+        DatagramPacket msg = packet;
+        final InetSocketAddress sender = SystemAddress.normalize(packet.sender());
+        final InetSocketAddress recipient = SystemAddress.normalize(packet.recipient());
+        if (sender != packet.sender() || recipient != packet.recipient())
+        {
+            // ipv4 client on a dual-stack socket
+            msg = new DatagramPacket(packet.content(), recipient, sender);
+        }
         for (final RaknetServerListener listener : this.listeners)
         {
             if (listener.isBlocked(ctx, msg))
             {
-                ctx.fireChannelReadComplete();
-            }
-            else
-            {
-                ctx.fireChannelRead(msg);
+                msg.release();
+                return;
             }
         }
+        ctx.fireChannelRead(msg);
     }
     
 }
@@ -17,32 +17,12 @@
  */
 package eu.xworlds.util.raknet;
 
-import java.lang.reflect.Constructor;
-import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.LongAdder;
 
-import eu.xworlds.util.raknet.protocol.ConnectedPing;
-import eu.xworlds.util.raknet.protocol.ConnectedPong;
-import eu.xworlds.util.raknet.protocol.ConnectionRequest;
-import eu.xworlds.util.raknet.protocol.DetectLostConnections;
 import eu.xworlds.util.raknet.protocol.InvalidRaknetMessage;
-import eu.xworlds.util.raknet.protocol.OpenConnectionReply1;
-import eu.xworlds.util.raknet.protocol.OpenConnectionReply2;
-import eu.xworlds.util.raknet.protocol.OpenConnectionRequest1;
-import eu.xworlds.util.raknet.protocol.OpenConnectionRequest2;
-import eu.xworlds.util.raknet.protocol.OurSystemRequiresSecurity;
-import eu.xworlds.util.raknet.protocol.OutOfBandInternal;
-import eu.xworlds.util.raknet.protocol.PublicKeyMismatch;
+import eu.xworlds.util.raknet.protocol.MalformedMessageException;
 import eu.xworlds.util.raknet.protocol.RaknetMessage;
-import eu.xworlds.util.raknet.protocol.RemoteSystemRequiresPublicKey;
-import eu.xworlds.util.raknet.protocol.SndReceiptAcked;
-import eu.xworlds.util.raknet.protocol.SndReceiptLoss;
-import eu.xworlds.util.raknet.protocol.UnconnectedPing;
-import eu.xworlds.util.raknet.protocol.UnconnectedPingOpenConnections;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
@@ -55,107 +35,152 @@ import io.netty.handler.codec.MessageToMessageDecoder;
  * This handler translates incoming datagram packages to RaknetMessage objects.
  * </p>
  * 
+ * <p>
+ * Before any message object is created the datagram length is checked against the limits of the message id and offline messages are checked for the offline message magic.
+ * Datagrams failing these checks are not raknet traffic; they are dropped silently and counted. Unknown ids are only limited to the maximum MTU size. Datagrams exceeding the maximum datagram size are
+ * truncated by the receive buffer; they are dropped and counted separately.
+ * </p>
+ * 
+ * <p>
+ * Messages with unknown ids or failing the content validation of their id are passed on as {@link InvalidRaknetMessage}. If invalid messages should be dropped they are only
+ * counted and no message object is created.
+ * </p>
+ * 
  * @author mepeisen
  */
 class RaknetDecoder extends MessageToMessageDecoder<DatagramPacket>
 {
     
     /** the well known messages */
-    private final Map<Byte, Constructor<? extends RaknetMessage>> messages = new HashMap<>();
+    private final RaknetMessageTable messages;
+    
+    /** the counter for dropped datagrams */
+    private final LongAdder          dropped;
+    
+    /** the counter for invalid messages */
+    private final LongAdder          invalid;
+    
+    /** true to drop invalid messages instead of passing {@link InvalidRaknetMessage} */
+    private final boolean            dropInvalid;
+    
+    /** the maximum datagram size */
+    private final int                maxDatagramSize;
+    
+    /** the counter for oversize datagrams */
+    private final LongAdder          oversize;
     
     /**
      * The handler for incoming connections.
      * 
-     * @param messageFactories
-     *            the message factories
+     * @param messages
+     *            the well known messages
+     * @param dropped
+     *            the counter for dropped datagrams
+     * @param invalid
+     *            the counter for invalid messages
+     * @param dropInvalid
+     *            {@code true} to drop invalid messages instead of passing {@link InvalidRaknetMessage}
+     * @param maxDatagramSize
+     *            the maximum datagram size; larger datagrams were truncated by the receive buffer
+     * @param oversize
+     *            the counter for oversize datagrams
      */
-    public RaknetDecoder(RaknetMessageFactory[] messageFactories)
+    public RaknetDecoder(RaknetMessageTable messages, LongAdder dropped, LongAdder invalid, boolean dropInvalid, int maxDatagramSize, LongAdder oversize)
     {
-        this.registerMessages(this.getDefaultMessages());
-        for (final RaknetMessageFactory factory : messageFactories)
-        {
-            final Map<Byte, Class<? extends RaknetMessage>> messageClasses = factory.getMessageClasses();
-            this.registerMessages(messageClasses);
-        }
+        this.maxDatagramSize = maxDatagramSize;
+        this.oversize = oversize;
+        this.messages = messages;
+        this.dropped = dropped;
+        this.invalid = invalid;
+        this.dropInvalid = dropInvalid;
     }
     
     @Override
     protected void decode(ChannelHandlerContext ctx, DatagramPacket msg, List<Object> out) throws Exception
     {
         final ByteBuf buf = msg.content();
-        buf.order(ByteOrder.BIG_ENDIAN);
+        if (buf.readableBytes() > this.maxDatagramSize)
+        {
+            this.oversize.increment();
+            return;
+        }
+        if (!this.isValid(buf))
+        {
+            this.dropped.increment();
+            return;
+        }
         final byte id = buf.readByte();
-        final Constructor<? extends RaknetMessage> ctor = this.messages.get(Byte.valueOf(id));
-        if (ctor == null)
+        final RaknetMessageDecoder decoder = this.messages.get(id);
+        if (decoder == null)
         {
-            final RaknetMessage result = new InvalidRaknetMessage(id, buf, msg.sender(), msg.recipient());
-            out.add(result);
+            this.invalid(id, msg, out, null);
+        }
+        else if (!this.messages.isValid(id, buf))
+        {
+            this.invalid(id, msg, out, MalformedMessageException.INVALID_CONTENT);
         }
         else
         {
             try
             {
-                final RaknetMessage result = ctor.newInstance(buf, msg.sender(), msg.recipient());
+                final RaknetMessage result = decoder.decode(buf, msg.sender(), msg.recipient());
                 out.add(result);
             }
             catch (Exception ex)
             {
-                final RaknetMessage result = new InvalidRaknetMessage(id, buf, msg.sender(), msg.recipient(), ex);
-                out.add(result);
+                this.invalid(id, msg, out, ex);
             }
         }
     }
     
     /**
-     * Register message classes.
+     * Reports an invalid message.
      * 
-     * @param classMap
-     *            the message classes.
+     * @param id
+     *            the raknet message id
+     * @param msg
+     *            the incoming datagram
+     * @param out
+     *            the decoded messages
+     * @param ex
+     *            the parse error or {@code null} if the message id is unknown
      */
-    private void registerMessages(Map<Byte, Class<? extends RaknetMessage>> classMap)
+    private void invalid(byte id, DatagramPacket msg, List<Object> out, Exception ex)
     {
-        if (classMap != null)
+        this.invalid.increment();
+        if (!this.dropInvalid)
         {
-            for (final Map.Entry<Byte, Class<? extends RaknetMessage>> entry : classMap.entrySet())
-            {
-                try
-                {
-                    final Constructor<? extends RaknetMessage> ctor = entry.getValue().getConstructor(ByteBuf.class, InetSocketAddress.class, InetSocketAddress.class);
-                    this.messages.put(entry.getKey(), ctor);
-                }
-                catch (NoSuchMethodException ex)
-                {
-                    RaknetServer.LOGGER.log(Level.WARNING, "Invalid raknet message", ex); //$NON-NLS-1$
-                }
-            }
+            out.add(new InvalidRaknetMessage(id, msg.content(), msg.sender(), msg.recipient(), ex));
         }
     }
     
     /**
-     * Creates the default messages
+     * Checks datagram length and offline message magic without reading the buffer.
      * 
-     * @return class map for standard protocol
+     * @param buf
+     *            the datagram content
+     * @return {@code true} if the datagram may be a raknet message
      */
-    private Map<Byte, Class<? extends RaknetMessage>> getDefaultMessages()
+    private boolean isValid(ByteBuf buf)
     {
-        final Map<Byte, Class<? extends RaknetMessage>> result = new HashMap<>();
-        result.put(Byte.valueOf(ConnectedPing.ID), ConnectedPing.class);
-        result.put(Byte.valueOf(ConnectedPong.ID), ConnectedPong.class);
-        result.put(Byte.valueOf(ConnectionRequest.ID), ConnectionRequest.class);
-        result.put(Byte.valueOf(DetectLostConnections.ID), DetectLostConnections.class);
-        result.put(Byte.valueOf(OpenConnectionReply1.ID), OpenConnectionReply1.class);
-        result.put(Byte.valueOf(OpenConnectionReply2.ID), OpenConnectionReply2.class);
-        result.put(Byte.valueOf(OpenConnectionRequest1.ID), OpenConnectionRequest1.class);
-        result.put(Byte.valueOf(OpenConnectionRequest2.ID), OpenConnectionRequest2.class);
-        result.put(Byte.valueOf(OurSystemRequiresSecurity.ID), OurSystemRequiresSecurity.class);
-        result.put(Byte.valueOf(OutOfBandInternal.ID), OutOfBandInternal.class);
-        result.put(Byte.valueOf(PublicKeyMismatch.ID), PublicKeyMismatch.class);
-        result.put(Byte.valueOf(RemoteSystemRequiresPublicKey.ID), RemoteSystemRequiresPublicKey.class);
-        result.put(Byte.valueOf(SndReceiptAcked.ID), SndReceiptAcked.class);
-        result.put(Byte.valueOf(SndReceiptLoss.ID), SndReceiptLoss.class);
-        result.put(Byte.valueOf(UnconnectedPing.ID), SndReceiptAcked.class);
-        result.put(Byte.valueOf(UnconnectedPingOpenConnections.ID), UnconnectedPingOpenConnections.class);
-        return result;
+        final int length = buf.readableBytes();
+        if (length == 0)
+        {
+            return false;
+        }
+        final int index = buf.readerIndex();
+        final byte id = buf.getByte(index);
+        if (length < this.messages.getMinLength(id) || length > this.messages.getMaxLength(id))
+        {
+            return false;
+        }
+        final int magicOffset = this.messages.getMagicOffset(id);
+        if (magicOffset != RaknetMessageTable.NO_MAGIC)
+        {
+            final int magicIndex = index + magicOffset;
+            return buf.getLong(magicIndex) == RaknetMessage.OFFLINE_MESSAGE_DATA_ID_HIGH && buf.getLong(magicIndex + 8) == RaknetMessage.OFFLINE_MESSAGE_DATA_ID_LOW;
+        }
+        return true;
     }
     
 }
@@ -17,10 +17,24 @@
  */
 package eu.xworlds.util.raknet;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import eu.xworlds.util.raknet.handler.ConnectedPingHandler;
+import eu.xworlds.util.raknet.handler.ConnectedPongHandler;
+import eu.xworlds.util.raknet.protocol.ConnectedPing;
+import eu.xworlds.util.raknet.protocol.ConnectedPong;
+import eu.xworlds.util.raknet.protocol.ConnectionRequest;
+import eu.xworlds.util.raknet.protocol.OpenConnectionReply1;
+import eu.xworlds.util.raknet.protocol.OpenConnectionReply2;
+import eu.xworlds.util.raknet.protocol.OpenConnectionRequest1;
+import eu.xworlds.util.raknet.protocol.OpenConnectionRequest2;
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
 import eu.xworlds.util.raknet.protocol.TargetedMessage;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
@@ -28,16 +42,61 @@ import io.netty.handler.codec.MessageToMessageDecoder;
 /**
  * Pipeline for incoming server connections.
  * 
+ * <p>
+ * Handled messages are released once their handler returns. Messages taken from a pool (for example {@link eu.xworlds.util.raknet.protocol.ConnectedPing}) are
+ * recycled at that point and must not be used afterwards unless the handler retained them.
+ * </p>
+ * 
+ * <p>
+ * Handlers are looked up by message id. Messages for {@link RaknetMessageBatchHandler} are collected and passed to the handler once the current read burst completes.
+ * </p>
+ * 
+ * <p>
+ * The open connection requests are answered by this handler. The first request is recorded in the {@link RaknetHandshakeTable} of the event loop; only a
+ * second request of a recorded peer is answered and makes the peer half open, other second requests are dropped. Answered requests are passed on like any
+ * other message afterwards, so registered handlers and the pipeline see them but must not answer them again. A session is only created once a half open
+ * peer sends its connection request; messages of peers without session are passed to the pipeline.
+ * </p>
+ * 
+ * <p>
+ * The easy handshake encryption is not implemented. The first reply only announces security if handshake cookies are enabled, to carry the cookie; its
+ * public key is zero filled and the second reply never requests security.
+ * </p>
+ * 
  * @author mepeisen
  */
 class RaknetHandler extends MessageToMessageDecoder<TargetedMessage>
 {
     
-    /** the well known raknet message handler */
-    private final Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> handlers = new HashMap<>();
+    /** the size of ip and udp headers; the mtu size includes them */
+    private static final int                                     UDP_HEADER_SIZE = 28;
+    
+    /** the public key announced in the first open connection reply; easy handshake is not implemented */
+    private static final byte[]                                  PUBLIC_KEY      = new byte[RaknetMessage.EASYHANDSHAKE_PUBLIC_KEY_BYTES];
+    
+    /** the handler chains indexed by message id */
+    private final HandlerChain[]                                 handlers      = new HandlerChain[256];
+    
+    /** the handler chains for message classes without message id */
+    private final Map<Class<? extends TargetedMessage>, HandlerChain> classHandlers = new HashMap<>();
+    
+    /** the batches of the current read burst */
+    private final List<Batch>                                    batches       = new ArrayList<>();
     
     /** the raknet server */
-    private final RaknetServer                                                                           server;
+    private final RaknetServer                                   server;
+    
+    /** the connection handshakes of the event loop */
+    private final RaknetHandshakeTable                           handshakes;
+    
+    /** the sender of the last handled message in current read burst */
+    private InetSocketAddress                                    lastSender;
+    
+    /** the receiver of the last handled message in current read burst */
+    private InetSocketAddress                                    lastReceiver;
+    
+    /** the session of the last handled message in current read burst */
+    private RaknetSessionImpl                                    lastSession;
     
     /**
      * The handler for incoming connections.
@@ -46,15 +105,28 @@ class RaknetHandler extends MessageToMessageDecoder<TargetedMessage>
      *            the raknet server
      * @param handlerFactories
      *            the handler factories.
+     * @param handshakes
+     *            the connection handshakes of the event loop of the channel
      */
-    public RaknetHandler(RaknetServer server, RaknetHandlerFactory[] handlerFactories)
+    public RaknetHandler(RaknetServer server, RaknetHandlerFactory[] handlerFactories, RaknetHandshakeTable handshakes)
     {
         this.server = server;
-        this.handlers.putAll(this.getDefaulHandlers());
+        this.handshakes = handshakes;
+        this.register(this.getDefaulHandlers());
         for (final RaknetHandlerFactory factory : handlerFactories)
         {
-            final Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> messageClasses = factory.getMessageHandlers();
-            this.handlers.putAll(messageClasses);
+            this.register(factory.getMessageHandlers());
+            final Map<Class<? extends TargetedMessage>, List<RaknetMessageHandler<? extends TargetedMessage>>> chained = factory.getChainedMessageHandlers();
+            if (chained != null)
+            {
+                for (final Map.Entry<Class<? extends TargetedMessage>, List<RaknetMessageHandler<? extends TargetedMessage>>> entry : chained.entrySet())
+                {
+                    for (final RaknetMessageHandler<? extends TargetedMessage> handler : entry.getValue())
+                    {
+                        this.chain(entry.getKey(), false).add(handler);
+                    }
+                }
+            }
         }
     }
     
@@ -66,39 +138,461 @@ class RaknetHandler extends MessageToMessageDecoder<TargetedMessage>
     private Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> getDefaulHandlers()
     {
         final Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> result = new HashMap<>();
-        // TODO Auto-generated method stub
+        result.put(ConnectedPing.class, new ConnectedPingHandler(this.server));
+        result.put(ConnectedPong.class, new ConnectedPongHandler());
         return result;
     }
     
+    /**
+     * Registers message handlers replacing existing handlers.
+     * 
+     * @param handlerMap
+     *            the message handlers
+     */
+    private void register(Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> handlerMap)
+    {
+        if (handlerMap != null)
+        {
+            for (final Map.Entry<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> entry : handlerMap.entrySet())
+            {
+                this.chain(entry.getKey(), true).add(entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Returns the handler chain for given message class.
+     * 
+     * @param type
+     *            the message class
+     * @param replace
+     *            {@code true} to return a new empty chain
+     * @return handler chain
+     */
+    private HandlerChain chain(Class<? extends TargetedMessage> type, boolean replace)
+    {
+        final int id = getId(type);
+        HandlerChain result = id == -1 ? this.classHandlers.get(type) : this.handlers[id];
+        if (result == null || result.type != type || replace)
+        {
+            result = new HandlerChain(type);
+            if (id == -1)
+            {
+                this.classHandlers.put(type, result);
+            }
+            else
+            {
+                this.handlers[id] = result;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the message id of given message class.
+     * 
+     * @param type
+     *            message class
+     * @return message id (unsigned) or -1 if the class does not declare a public static byte field {@code ID}
+     */
+    private static int getId(Class<? extends TargetedMessage> type)
+    {
+        try
+        {
+            final Field field = type.getField("ID"); //$NON-NLS-1$
+            if (field.getType() == byte.class && Modifier.isStatic(field.getModifiers()) && field.getDeclaringClass() == type)
+            {
+                return field.getByte(null) & 0xFF;
+            }
+        }
+        catch (NoSuchFieldException | IllegalAccessException ex)
+        {
+            // fall through
+        }
+        return -1;
+    }
+    
     @Override
     protected void decode(ChannelHandlerContext ctx, TargetedMessage msg, List<Object> out) throws Exception
     {
-        final RaknetMessageHandler<? extends TargetedMessage> handler = this.handlers.get(msg.getClass());
-        if (handler == null)
+        HandlerChain chain = this.handlers[msg.getId() & 0xFF];
+        if (chain == null || chain.type != msg.getClass())
+        {
+            chain = this.classHandlers.isEmpty() ? null : this.classHandlers.get(msg.getClass());
+        }
+        if (msg instanceof OpenConnectionRequest1)
+        {
+            this.open((OpenConnectionRequest1) msg, ctx);
+        }
+        else if (msg instanceof OpenConnectionRequest2)
+        {
+            if (!this.request((OpenConnectionRequest2) msg, ctx))
+            {
+                // spoofed, expired or broken; the peer never received our first reply or misread it
+                this.server.rejectedHandshakes.increment();
+                return;
+            }
+        }
+        else if (msg instanceof ConnectionRequest)
+        {
+            final long guid = ((ConnectionRequest) msg).getClientGuid();
+            final boolean completed = this.handshakes.complete(msg.getSender(), msg.getReceiver(), guid);
+            // only peers that completed the cookie round trip from this address may migrate a session; the guid is visible on the network path
+            if (this.server.trackGuid(guid, msg.getSender(), msg.getReceiver(), ctx.channel(), completed, completed) == null)
+            {
+                // no handshake and no session; drop it
+                this.server.rejectedHandshakes.increment();
+                return;
+            }
+        }
+        // every message of an established peer keeps its session alive, even without a handler chain
+        final RaknetSession session = this.getSession(msg);
+        if (session == null || chain == null)
         {
-            // re-add message
-            out.add(msg);
+            // re-add message; the decoder releases its own reference
+            out.add(msg.retain());
         }
         else
         {
-            // handle message
-            this.decode(handler, msg, out);
+            chain.handle(msg, session, out);
+        }
+    }
+    
+    /**
+     * Answers the first open connection request; records the peer or sends a cookie if cookies are enabled.
+     * 
+     * @param msg
+     *            the request
+     * @param ctx
+     *            the channel handler context
+     */
+    private void open(OpenConnectionRequest1 msg, ChannelHandlerContext ctx)
+    {
+        final OpenConnectionReply1 reply = new OpenConnectionReply1(msg.getReceiver(), msg.getSender());
+        reply.setMagic(RaknetMessage.OFFLINE_MESSAGE_DATA_ID.clone());
+        reply.setServerGuid(this.server.getServerGuid());
+        if (this.server.handshakeCookies)
+        {
+            reply.setSecurity(this.handshakes.cookie(msg.getSender(), msg.getReceiver()), PUBLIC_KEY);
+        }
+        else
+        {
+            // stock clients read the security block as mtu size
+            this.handshakes.open(msg.getSender(), msg.getReceiver());
+            reply.setNoSecurity();
+        }
+        // the request is padded to the mtu size the client probes
+        reply.setMtuSize(this.mtuSize(msg.encodedSize() + UDP_HEADER_SIZE));
+        this.server.reply(ctx.channel(), reply);
+    }
+    
+    /**
+     * Answers the second open connection request of a peer that sent the first one or echoed a valid cookie; the peer becomes half open.
+     * 
+     * @param msg
+     *            the request
+     * @param ctx
+     *            the channel handler context
+     * @return {@code true} if the request was answered; {@code false} if it has to be dropped
+     */
+    private boolean request(OpenConnectionRequest2 msg, ChannelHandlerContext ctx)
+    {
+        if (msg.getMtuSize() < RaknetMessage.MINIMUM_MTU_SIZE)
+        {
+            return false;
+        }
+        final boolean valid = this.server.handshakeCookies
+                ? msg.isUseSecurity() && this.handshakes.request(msg.getSender(), msg.getReceiver(), msg.getCookie(), msg.getGuid())
+                : this.handshakes.request(msg.getSender(), msg.getReceiver(), msg.getGuid());
+        if (!valid)
+        {
+            return false;
         }
+        this.server.trackGuid(msg.getGuid(), msg.getSender(), msg.getReceiver(), ctx.channel(), false, false);
+        final OpenConnectionReply2 reply = new OpenConnectionReply2(msg.getReceiver(), msg.getSender());
+        reply.setMagic(RaknetMessage.OFFLINE_MESSAGE_DATA_ID.clone());
+        reply.setServerGuid(this.server.getServerGuid());
+        reply.setPort(msg.getReceiver().getPort());
+        reply.setMtuSize(this.mtuSize(msg.getMtuSize()));
+        reply.setDoSecurityFalse();
+        this.server.reply(ctx.channel(), reply);
+        return true;
     }
     
     /**
-     * @param handler
-     *            the handler
+     * Limits the mtu size requested by a client.
+     * 
+     * @param requested
+     *            the requested mtu size
+     * @return mtu size supported by the client and this server
+     */
+    private int mtuSize(int requested)
+    {
+        return Math.min(requested, Math.min(RaknetMessage.MAXIMUM_MTU_SIZE, this.server.maxDatagramSize + UDP_HEADER_SIZE));
+    }
+    
+    /**
+     * Returns the established session for given message and restarts its read timeout; reuses the session of the previous message from the same peer.
+     * 
+     * <p>
+     * The first message after the connection request completes the connection of the session.
+     * </p>
+     * 
      * @param msg
      *            the incoming message
-     * @param out
-     *            the outgoing message
+     * @return session or {@code null} if the peer has no established session
+     */
+    private RaknetSession getSession(TargetedMessage msg)
+    {
+        final InetSocketAddress sender = msg.getSender();
+        final InetSocketAddress receiver = msg.getReceiver();
+        if (this.lastSession == null || !sender.equals(this.lastSender) || !receiver.equals(this.lastReceiver))
+        {
+            this.lastSender = sender;
+            this.lastReceiver = receiver;
+            this.lastSession = this.server.findSession(sender, receiver);
+        }
+        final RaknetSessionImpl session = this.lastSession;
+        if (session != null)
+        {
+            session.touch();
+            if (session.getConnectMode() == ConnectMode.HANDLING_CONNECTION_REQUEST && !(msg instanceof ConnectionRequest))
+            {
+                session.setConnectionState(ConnectionState.IS_CONNECTED, ConnectMode.CONNECTED);
+            }
+        }
+        return session;
+    }
+    
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
+    {
+        this.lastSender = null;
+        this.lastReceiver = null;
+        this.lastSession = null;
+        if (!this.batches.isEmpty())
+        {
+            final List<Object> out = new ArrayList<>();
+            RuntimeException failure = null;
+            try
+            {
+                for (final Batch batch : this.batches)
+                {
+                    try
+                    {
+                        batch.flush(out);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        // a failing batch handler must not stall the other batches
+                        if (failure == null)
+                        {
+                            failure = ex;
+                        }
+                        else
+                        {
+                            failure.addSuppressed(ex);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                for (final Batch batch : this.batches)
+                {
+                    batch.clear();
+                }
+                this.batches.clear();
+                for (final Object msg : out)
+                {
+                    ctx.fireChannelRead(msg);
+                }
+            }
+            if (failure != null)
+            {
+                ctx.fireExceptionCaught(failure);
+            }
+        }
+        super.channelReadComplete(ctx);
+    }
+    
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        for (final Batch batch : this.batches)
+        {
+            batch.clear();
+        }
+        this.batches.clear();
+        super.handlerRemoved(ctx);
+    }
+    
+    /**
+     * The handlers registered for a message class.
+     */
+    private final class HandlerChain
+    {
+        
+        /** the message class */
+        final Class<? extends TargetedMessage>             type;
+        
+        /** the message handlers */
+        private RaknetMessageHandler<? extends TargetedMessage>[] chain = newArray(0);
+        
+        /** the batches; same index as handler; {@code null} for handlers without batch support */
+        private Batch[]                                    chainBatches = new Batch[0];
+        
+        /**
+         * Constructor.
+         * 
+         * @param type
+         *            the message class
+         */
+        HandlerChain(Class<? extends TargetedMessage> type)
+        {
+            this.type = type;
+        }
+        
+        /**
+         * Appends a handler.
+         * 
+         * @param handler
+         *            the message handler
+         */
+        void add(RaknetMessageHandler<? extends TargetedMessage> handler)
+        {
+            final int length = this.chain.length;
+            final RaknetMessageHandler<? extends TargetedMessage>[] newChain = newArray(length + 1);
+            System.arraycopy(this.chain, 0, newChain, 0, length);
+            newChain[length] = handler;
+            final Batch[] newBatches = new Batch[length + 1];
+            System.arraycopy(this.chainBatches, 0, newBatches, 0, length);
+            if (handler instanceof RaknetMessageBatchHandler)
+            {
+                newBatches[length] = new Batch((RaknetMessageBatchHandler<? extends TargetedMessage>) handler);
+            }
+            this.chain = newChain;
+            this.chainBatches = newBatches;
+        }
+        
+        /**
+         * Handles a message.
+         * 
+         * @param msg
+         *            the incoming message
+         * @param session
+         *            the raknet session
+         * @param out
+         *            the outgoing messages
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        void handle(TargetedMessage msg, RaknetSession session, List<Object> out)
+        {
+            for (int i = 0; i < this.chain.length; i++)
+            {
+                final Batch batch = this.chainBatches[i];
+                if (batch == null)
+                {
+                    ((RaknetMessageHandler) this.chain[i]).handle(msg, session, out);
+                }
+                else
+                {
+                    batch.add(msg, session);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * Creates a handler array.
+     * 
+     * @param length
+     *            array length
+     * @return handler array
      */
     @SuppressWarnings("unchecked")
-    private <T extends TargetedMessage> void decode(RaknetMessageHandler<T> handler, TargetedMessage msg, List<Object> out)
+    static RaknetMessageHandler<? extends TargetedMessage>[] newArray(int length)
+    {
+        return new RaknetMessageHandler[length];
+    }
+    
+    /**
+     * The messages collected for a batch handler during current read burst.
+     */
+    private final class Batch
     {
-        final RaknetSession session = this.server.getOrCreateSession(msg.getSender(), msg.getReceiver());
-        handler.handle((T) msg, session, out);
+        
+        /** the batch handler */
+        private final RaknetMessageBatchHandler<? extends TargetedMessage> handler;
+        
+        /** the collected messages */
+        private final List<TargetedMessage>                          messages = new ArrayList<>();
+        
+        /** the sessions of the collected messages */
+        private final List<RaknetSession>                            sessions = new ArrayList<>();
+        
+        /**
+         * Constructor.
+         * 
+         * @param handler
+         *            the batch handler
+         */
+        Batch(RaknetMessageBatchHandler<? extends TargetedMessage> handler)
+        {
+            this.handler = handler;
+        }
+        
+        /**
+         * Collects a message.
+         * 
+         * @param msg
+         *            the incoming message; retained until the batch is flushed
+         * @param session
+         *            the raknet session
+         */
+        void add(TargetedMessage msg, RaknetSession session)
+        {
+            if (this.messages.isEmpty())
+            {
+                RaknetHandler.this.batches.add(this);
+            }
+            this.messages.add(msg.retain());
+            this.sessions.add(session);
+        }
+        
+        /**
+         * Passes the collected messages to the handler.
+         * 
+         * @param out
+         *            the outgoing messages
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        void flush(List<Object> out)
+        {
+            try
+            {
+                ((RaknetMessageBatchHandler) this.handler).handleBatch(this.messages, this.sessions, out);
+            }
+            finally
+            {
+                this.clear();
+            }
+        }
+        
+        /**
+         * Releases the collected messages.
+         */
+        void clear()
+        {
+            for (final TargetedMessage msg : this.messages)
+            {
+                msg.release();
+            }
+            this.messages.clear();
+            this.sessions.clear();
+        }
+        
     }
     
 }
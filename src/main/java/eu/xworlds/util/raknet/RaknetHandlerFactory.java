@@ -17,6 +17,7 @@
  */
 package eu.xworlds.util.raknet;
 
+import java.util.List;
 import java.util.Map;
 
 import eu.xworlds.util.raknet.protocol.TargetedMessage;
@@ -24,6 +25,11 @@ import eu.xworlds.util.raknet.protocol.TargetedMessage;
 /**
  * A handler to create raknet message handlers.
  * 
+ * <p>
+ * Handlers are called for messages of peers with a session. Messages of other peers, for example the open connection requests of new clients, are passed to
+ * the pipeline instead. The server answers the open connection requests itself before passing them on; handlers must not answer them again.
+ * </p>
+ * 
  * @author mepeisen
  */
 public interface RaknetHandlerFactory
@@ -32,8 +38,29 @@ public interface RaknetHandlerFactory
     /**
      * Returns the message handlers.
      * 
+     * <p>
+     * Each handler replaces the handlers registered before for the same message class.
+     * </p>
+     * 
+     * @return message handlers per message class.
+     */
+    default Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> getMessageHandlers()
+    {
+        return null;
+    }
+    
+    /**
+     * Returns the message handlers to be chained.
+     * 
+     * <p>
+     * The handlers are invoked in list order after the handlers registered before for the same message class.
+     * </p>
+     * 
      * @return message handlers per message class.
      */
-    Map<Class<? extends TargetedMessage>, RaknetMessageHandler<? extends TargetedMessage>> getMessageHandlers();
+    default Map<Class<? extends TargetedMessage>, List<RaknetMessageHandler<? extends TargetedMessage>>> getChainedMessageHandlers()
+    {
+        return null;
+    }
     
 }
@@ -0,0 +1,455 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The connection handshakes of a single event loop; shared by all channels of the loop.
+ * 
+ * <p>
+ * Stock clients echo nothing the server chooses before the connection request, so by default the first open connection request of a peer is recorded in the
+ * table ({@link #open(InetSocketAddress, InetSocketAddress)}) and only recorded peers may send the second one. With cookies enabled the first open connection
+ * request is answered with a cookie instead: a truncated HMAC of remote and local address and the current time window, keyed with a secret of the server.
+ * The cookie is stateless; it proves that the peer receives the replies sent to its address, so spoofed senders never reach the table. Cookies stay valid
+ * for one to two handshake timeouts. Either way a peer becomes half open with the second open connection request and only becomes a session once it sends a
+ * connection request with the same guid within the handshake timeout.
+ * </p>
+ * 
+ * <p>
+ * Peers are kept in a fixed number of slots allocated up front; the table never allocates afterwards. A peer hashes to a window of {@value #WINDOW} slots.
+ * Entries expire lazily after the handshake timeout and are reused. If the window of a new peer is full, the entry with the earliest deadline is evicted.
+ * Peers in the handshake only compete with each other, never with established sessions.
+ * </p>
+ * 
+ * <p>
+ * The table is not thread safe; it must only be used by its event loop.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+class RaknetHandshakeTable
+{
+    
+    /** the number of slots a peer may occupy */
+    static final int                  WINDOW    = 8;
+    
+    /** stage of free slots */
+    private static final byte         FREE      = 0;
+    
+    /** stage of peers that sent the first open connection request */
+    private static final byte         OPENING   = 1;
+    
+    /** stage of peers that sent the second open connection request */
+    private static final byte         REQUESTED = 2;
+    
+    /** the digest algorithm of the cookie hmac */
+    private static final String       ALGORITHM = "SHA-256"; //$NON-NLS-1$
+    
+    /** the block size of the digest */
+    private static final int          BLOCK     = 64;
+    
+    /** the packed remote addresses */
+    private final long[]              remote;
+    
+    /** the packed local addresses */
+    private final long[]              local;
+    
+    /** the remote addresses; verify packed IPv6 addresses */
+    private final InetSocketAddress[] remotes;
+    
+    /** the client guids announced in the second open connection request */
+    private final long[]              guids;
+    
+    /** the deadlines in nano seconds */
+    private final long[]              deadlines;
+    
+    /** the handshake stages */
+    private final byte[]              stages;
+    
+    /** the mask selecting a slot from a hash */
+    private final int                 mask;
+    
+    /** the handshake timeout in nano seconds */
+    private final long                timeout;
+    
+    /** counter for half open connections evicted by new peers */
+    private final LongAdder           evicted;
+    
+    /** the digest of the cookie hmac; {@code null} if cookies are disabled */
+    private final MessageDigest       digest;
+    
+    /** the secret xor the inner hmac pad; {@code null} if cookies are disabled */
+    private final byte[]              innerKey;
+    
+    /** the secret xor the outer hmac pad; {@code null} if cookies are disabled */
+    private final byte[]              outerKey;
+    
+    /** the cookie input; addresses, ports and time window */
+    private final byte[]              input     = new byte[2 * (16 + 2) + 8];
+    
+    /** the cookie hmac output; {@code null} if cookies are disabled */
+    private final byte[]              output;
+    
+    /** the IPv6 addresses whose bytes are cached; {@code null} if cookies are disabled */
+    private final InetAddress[]       cached6;
+    
+    /** the cached bytes of the IPv6 addresses, 16 bytes per entry; {@code null} if cookies are disabled */
+    private final byte[]              raw6;
+    
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            the number of half open connections; rounded up to a power of two
+     * @param timeout
+     *            the handshake timeout in nano seconds
+     * @param evicted
+     *            counter for half open connections evicted by new peers
+     * @param secret
+     *            the secret of the server keying the cookies, at most {@value #BLOCK} bytes; {@code null} to disable cookies
+     */
+    RaknetHandshakeTable(int capacity, long timeout, LongAdder evicted, byte[] secret)
+    {
+        final int length = Math.max(WINDOW, Integer.highestOneBit(capacity - 1) << 1);
+        this.remote = new long[length];
+        this.local = new long[length];
+        this.remotes = new InetSocketAddress[length];
+        this.guids = new long[length];
+        this.deadlines = new long[length];
+        this.stages = new byte[length];
+        this.mask = length - 1;
+        this.timeout = timeout;
+        this.evicted = evicted;
+        if (secret == null)
+        {
+            this.digest = null;
+            this.innerKey = null;
+            this.outerKey = null;
+            this.output = null;
+            this.cached6 = null;
+            this.raw6 = null;
+            return;
+        }
+        try
+        {
+            this.digest = MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // every java platform supports SHA-256
+            throw new IllegalStateException(ex);
+        }
+        // hmac (RFC 2104) on a plain digest; javax.crypto.Mac allocates its result on every call
+        this.innerKey = new byte[BLOCK];
+        this.outerKey = new byte[BLOCK];
+        for (int i = 0; i < BLOCK; i++)
+        {
+            final byte key = i < secret.length ? secret[i] : 0;
+            this.innerKey[i] = (byte) (key ^ 0x36);
+            this.outerKey[i] = (byte) (key ^ 0x5C);
+        }
+        this.output = new byte[this.digest.getDigestLength()];
+        this.cached6 = new InetAddress[length];
+        this.raw6 = new byte[length * 16];
+    }
+    
+    /**
+     * Records the first open connection request of a peer; used if cookies are disabled.
+     * 
+     * @param from
+     *            remote address
+     * @param to
+     *            local address
+     */
+    void open(InetSocketAddress from, InetSocketAddress to)
+    {
+        final long now = System.nanoTime();
+        final long r = RaknetSessionTable.pack(from);
+        final long l = RaknetSessionTable.pack(to);
+        int slot = this.find(r, l, from, now);
+        if (slot < 0)
+        {
+            slot = this.claim(r, l, now);
+            this.record(slot, r, l, from);
+            this.stages[slot] = OPENING;
+        }
+        if (this.stages[slot] == OPENING)
+        {
+            this.deadlines[slot] = now + this.timeout;
+        }
+    }
+    
+    /**
+     * Records the second open connection request of a peer that sent the first one within the handshake timeout; used if cookies are disabled.
+     * 
+     * @param from
+     *            remote address
+     * @param to
+     *            local address
+     * @param guid
+     *            the client guid
+     * @return {@code true} if the peer is half open
+     */
+    boolean request(InetSocketAddress from, InetSocketAddress to, long guid)
+    {
+        final long now = System.nanoTime();
+        final int slot = this.find(RaknetSessionTable.pack(from), RaknetSessionTable.pack(to), from, now);
+        if (slot < 0)
+        {
+            return false;
+        }
+        this.stages[slot] = REQUESTED;
+        this.guids[slot] = guid;
+        this.deadlines[slot] = now + this.timeout;
+        return true;
+    }
+    
+    /**
+     * Returns the cookie for the first open connection request of a peer; used if cookies are enabled.
+     * 
+     * @param from
+     *            remote address
+     * @param to
+     *            local address
+     * @return cookie to be echoed in the second open connection request
+     */
+    int cookie(InetSocketAddress from, InetSocketAddress to)
+    {
+        return this.cookie(from, to, Math.floorDiv(System.nanoTime(), this.timeout));
+    }
+    
+    /**
+     * Records the second open connection request of a peer if it echoed a valid cookie; used if cookies are enabled.
+     * 
+     * @param from
+     *            remote address
+     * @param to
+     *            local address
+     * @param cookie
+     *            the echoed cookie
+     * @param guid
+     *            the client guid
+     * @return {@code true} if the cookie was valid and the peer is half open
+     */
+    boolean request(InetSocketAddress from, InetSocketAddress to, int cookie, long guid)
+    {
+        final long now = System.nanoTime();
+        final long window = Math.floorDiv(now, this.timeout);
+        if (cookie != this.cookie(from, to, window) && cookie != this.cookie(from, to, window - 1))
+        {
+            return false;
+        }
+        final long r = RaknetSessionTable.pack(from);
+        final long l = RaknetSessionTable.pack(to);
+        int slot = this.find(r, l, from, now);
+        if (slot < 0)
+        {
+            slot = this.claim(r, l, now);
+            this.record(slot, r, l, from);
+        }
+        this.stages[slot] = REQUESTED;
+        this.guids[slot] = guid;
+        this.deadlines[slot] = now + this.timeout;
+        return true;
+    }
+    
+    /**
+     * Completes the handshake of a peer that sent its connection request and frees its slot.
+     * 
+     * @param from
+     *            remote address
+     * @param to
+     *            local address
+     * @param guid
+     *            the client guid of the connection request
+     * @return {@code true} if the peer sent the second open connection request with the same guid within the handshake timeout
+     */
+    boolean complete(InetSocketAddress from, InetSocketAddress to, long guid)
+    {
+        final int slot = this.find(RaknetSessionTable.pack(from), RaknetSessionTable.pack(to), from, System.nanoTime());
+        if (slot < 0 || this.stages[slot] != REQUESTED || this.guids[slot] != guid)
+        {
+            return false;
+        }
+        this.stages[slot] = FREE;
+        this.remotes[slot] = null;
+        return true;
+    }
+    
+    /**
+     * Records a new peer in a claimed slot.
+     * 
+     * @param slot
+     *            the claimed slot
+     * @param r
+     *            packed remote address
+     * @param l
+     *            packed local address
+     * @param from
+     *            remote address
+     */
+    private void record(int slot, long r, long l, InetSocketAddress from)
+    {
+        this.remote[slot] = r;
+        this.local[slot] = l;
+        this.remotes[slot] = from;
+        this.guids[slot] = 0;
+    }
+    
+    /**
+     * Computes the cookie of a peer for a time window.
+     * 
+     * @param from
+     *            remote address
+     * @param to
+     *            local address
+     * @param window
+     *            the time window
+     * @return cookie
+     */
+    private int cookie(InetSocketAddress from, InetSocketAddress to, long window)
+    {
+        int offset = this.put(from, 0);
+        offset = this.put(to, offset);
+        for (int i = 7; i >= 0; i--)
+        {
+            this.input[offset++] = (byte) (window >> (i * 8));
+        }
+        try
+        {
+            this.digest.update(this.innerKey);
+            this.digest.update(this.input, 0, offset);
+            this.digest.digest(this.output, 0, this.output.length);
+            this.digest.update(this.outerKey);
+            this.digest.update(this.output);
+            this.digest.digest(this.output, 0, this.output.length);
+        }
+        catch (DigestException ex)
+        {
+            // the output is sized by the digest length
+            throw new IllegalStateException(ex);
+        }
+        return (this.output[0] & 0xFF) << 24 | (this.output[1] & 0xFF) << 16 | (this.output[2] & 0xFF) << 8 | (this.output[3] & 0xFF);
+    }
+    
+    /**
+     * Writes address and port into the cookie input without allocating.
+     * 
+     * @param address
+     *            the socket address
+     * @param offset
+     *            the offset within the cookie input
+     * @return the offset behind the written address
+     */
+    private int put(InetSocketAddress address, int offset)
+    {
+        final InetAddress ip = address.getAddress();
+        int result = offset;
+        if (ip instanceof Inet4Address)
+        {
+            // the hash code of an IPv4 address is the address itself
+            final int bits = ip.hashCode();
+            this.input[result++] = (byte) (bits >> 24);
+            this.input[result++] = (byte) (bits >> 16);
+            this.input[result++] = (byte) (bits >> 8);
+            this.input[result++] = (byte) bits;
+        }
+        else
+        {
+            final int entry = ip.hashCode() & this.mask;
+            if (!ip.equals(this.cached6[entry]))
+            {
+                // the jdk has no IPv6 accessor without copy; copy once per address and reuse the bytes for retries and the second request
+                System.arraycopy(ip.getAddress(), 0, this.raw6, entry * 16, 16);
+                this.cached6[entry] = ip;
+            }
+            System.arraycopy(this.raw6, entry * 16, this.input, result, 16);
+            result += 16;
+        }
+        this.input[result++] = (byte) (address.getPort() >> 8);
+        this.input[result++] = (byte) address.getPort();
+        return result;
+    }
+    
+    /**
+     * Finds the live slot of a peer.
+     * 
+     * @param r
+     *            packed remote address
+     * @param l
+     *            packed local address
+     * @param from
+     *            remote address
+     * @param now
+     *            current time in nano seconds
+     * @return slot or -1 if the peer is not in the handshake
+     */
+    private int find(long r, long l, InetSocketAddress from, long now)
+    {
+        final int start = (int) RaknetSessionTable.hash(r, l) & this.mask;
+        for (int i = 0; i < WINDOW; i++)
+        {
+            final int slot = (start + i) & this.mask;
+            if (this.stages[slot] != FREE && this.deadlines[slot] - now > 0 && this.remote[slot] == r && this.local[slot] == l
+                    && (RaknetSessionTable.isExact(from) || from.equals(this.remotes[slot])))
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Claims a slot for a new peer; evicts the half open connection with the earliest deadline if the window is full.
+     * 
+     * @param r
+     *            packed remote address
+     * @param l
+     *            packed local address
+     * @param now
+     *            current time in nano seconds
+     * @return slot
+     */
+    private int claim(long r, long l, long now)
+    {
+        final int start = (int) RaknetSessionTable.hash(r, l) & this.mask;
+        int oldest = start;
+        for (int i = 0; i < WINDOW; i++)
+        {
+            final int slot = (start + i) & this.mask;
+            if (this.stages[slot] == FREE || this.deadlines[slot] - now <= 0)
+            {
+                return slot;
+            }
+            if (this.deadlines[slot] - this.deadlines[oldest] < 0)
+            {
+                oldest = slot;
+            }
+        }
+        this.evicted.increment();
+        return oldest;
+    }
+    
+}
@@ -0,0 +1,65 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import eu.xworlds.util.raknet.protocol.TargetedMessage;
+
+/**
+ * Handler receiving all incoming raknet messages of one read burst at once.
+ * 
+ * <p>
+ * Messages are collected while the channel reads and are passed to {@link #handleBatch(List, List, Collection)} once the read burst completes. The single message method
+ * {@link #handle(TargetedMessage, RaknetSession, Collection)} is not invoked by the raknet pipeline.
+ * </p>
+ * 
+ * @author mepeisen
+ * @param <T>
+ *            the message type
+ */
+public interface RaknetMessageBatchHandler<T extends TargetedMessage> extends RaknetMessageHandler<T>
+{
+    
+    /**
+     * Handles the messages of one read burst.
+     * 
+     * <p>
+     * The messages are released after the handler returns. Handlers that keep a message or pass it to {@code out} must retain it.
+     * </p>
+     * 
+     * @param messages
+     *            the incoming messages in order of arrival
+     * @param sessions
+     *            the raknet session of each message; same index as the message
+     * @param out
+     *            the messages to be passed to the next pipeline handler
+     */
+    void handleBatch(List<T> messages, List<RaknetSession> sessions, Collection<Object> out);
+    
+    @Override
+    default void handle(T message, RaknetSession session, Collection<Object> out)
+    {
+        final List<T> messages = Collections.singletonList(message);
+        final List<RaknetSession> sessions = Collections.singletonList(session);
+        this.handleBatch(messages, sessions, out);
+    }
+    
+}
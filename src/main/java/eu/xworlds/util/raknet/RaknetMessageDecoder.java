@@ -0,0 +1,51 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.net.InetSocketAddress;
+
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Creates raknet messages from incoming network data.
+ * 
+ * <p>
+ * Typically a method reference to the message constructor, for example {@code ConnectedPing::new}.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+@FunctionalInterface
+public interface RaknetMessageDecoder
+{
+    
+    /**
+     * Decodes an incoming message.
+     * 
+     * @param buf
+     *            message data; the reader index is already positioned behind the message id
+     * @param sender
+     *            message sender.
+     * @param receiver
+     *            message receiver.
+     * @return the decoded message
+     */
+    RaknetMessage decode(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver);
+    
+}
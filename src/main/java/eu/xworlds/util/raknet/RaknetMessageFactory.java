@@ -36,8 +36,45 @@ public interface RaknetMessageFactory
      * Each class must have a constructor with 3 arguments: {@code ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver}
      * </p>
      * 
+     * <p>
+     * The constructor is invoked by reflection. Prefer {@link #getMessageDecoders()} for new messages.
+     * </p>
+     * 
      * @return messge class map
      */
-    Map<Byte, Class<? extends RaknetMessage>> getMessageClasses();
+    default Map<Byte, Class<? extends RaknetMessage>> getMessageClasses()
+    {
+        return null;
+    }
+    
+    /**
+     * Return the message decoders, mapped by identification byte.
+     * 
+     * <p>
+     * Decoders are typically constructor references, for example {@code MyMessage::new}. They take precedence over classes returned by {@link #getMessageClasses()} for the same
+     * identification byte.
+     * </p>
+     * 
+     * @return message decoder map
+     */
+    default Map<Byte, RaknetMessageDecoder> getMessageDecoders()
+    {
+        return null;
+    }
+    
+    /**
+     * Return the message validators, mapped by identification byte.
+     * 
+     * <p>
+     * A validator is invoked before the decoder of the same identification byte. Messages failing validation are reported as
+     * {@link eu.xworlds.util.raknet.protocol.InvalidRaknetMessage} or dropped without invoking the decoder.
+     * </p>
+     * 
+     * @return message validator map
+     */
+    default Map<Byte, RaknetMessageValidator> getMessageValidators()
+    {
+        return null;
+    }
     
 }
@@ -22,12 +22,24 @@ import java.util.Collection;
 import eu.xworlds.util.raknet.protocol.TargetedMessage;
 
 /**
+ * Handler for incoming raknet messages.
+ * 
+ * <p>
+ * The message is released after the handler returns. Handlers that keep the message or pass it to {@code out} must retain it.
+ * </p>
+ * 
  * @author mepeisen
  *
  */
 public interface RaknetMessageHandler<T extends TargetedMessage>
 {
     
+    /**
+     * Handles an incoming message.
+     * @param message the incoming message
+     * @param session the raknet session
+     * @param out the messages to be passed to the next pipeline handler
+     */
     void handle(T message, RaknetSession session, Collection<Object> out);
     
 }
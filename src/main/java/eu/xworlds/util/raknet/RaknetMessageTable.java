@@ -0,0 +1,344 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+
+import eu.xworlds.util.raknet.protocol.ConnectedPing;
+import eu.xworlds.util.raknet.protocol.ConnectedPong;
+import eu.xworlds.util.raknet.protocol.ConnectionRequest;
+import eu.xworlds.util.raknet.protocol.DetectLostConnections;
+import eu.xworlds.util.raknet.protocol.OpenConnectionReply1;
+import eu.xworlds.util.raknet.protocol.OpenConnectionReply2;
+import eu.xworlds.util.raknet.protocol.OpenConnectionRequest1;
+import eu.xworlds.util.raknet.protocol.OpenConnectionRequest2;
+import eu.xworlds.util.raknet.protocol.OurSystemRequiresSecurity;
+import eu.xworlds.util.raknet.protocol.OutOfBandInternal;
+import eu.xworlds.util.raknet.protocol.PublicKeyMismatch;
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import eu.xworlds.util.raknet.protocol.RemoteSystemRequiresPublicKey;
+import eu.xworlds.util.raknet.protocol.SndReceiptAcked;
+import eu.xworlds.util.raknet.protocol.SndReceiptLoss;
+import eu.xworlds.util.raknet.protocol.SystemAddress;
+import eu.xworlds.util.raknet.protocol.UnconnectedPing;
+import eu.xworlds.util.raknet.protocol.UnconnectedPingOpenConnections;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The table of known raknet messages, indexed by message id.
+ * 
+ * <p>
+ * The table is built once during server startup and shared by all bound channels. It is not modified afterwards.
+ * </p>
+ * 
+ * <p>
+ * Ids without registered message (for example connected frame sets, ACK and NAK) accept any datagram up to {@link RaknetMessage#MAXIMUM_MTU_SIZE} without magic,
+ * so they reach the pipeline as {@link eu.xworlds.util.raknet.protocol.InvalidRaknetMessage}.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+final class RaknetMessageTable
+{
+    
+    /** constant for messages without magic */
+    static final int                     NO_MAGIC     = -1;
+    
+    /** the message decoders; one slot per possible message id */
+    private final RaknetMessageDecoder[] decoders     = new RaknetMessageDecoder[256];
+    
+    /** the minimum datagram length (including message id) per message id */
+    private final int[]                  minLengths   = new int[256];
+    
+    /** the maximum datagram length (including message id) per message id */
+    private final int[]                  maxLengths   = new int[256];
+    
+    /** the offset of the offline message magic (relative to message id) per message id or {@link #NO_MAGIC} */
+    private final int[]                  magicOffsets = new int[256];
+    
+    /** the content validators per message id; {@code null} if the length limits are sufficient */
+    private final RaknetMessageValidator[] validators = new RaknetMessageValidator[256];
+    
+    /**
+     * Constructor.
+     * 
+     * @param messageFactories
+     *            the message factories
+     * @param views
+     *            {@code true} to decode handshake and out of band messages as views of the incoming datagram
+     */
+    RaknetMessageTable(RaknetMessageFactory[] messageFactories, boolean views)
+    {
+        Arrays.fill(this.minLengths, 1);
+        Arrays.fill(this.maxLengths, RaknetMessage.MAXIMUM_MTU_SIZE);
+        Arrays.fill(this.magicOffsets, NO_MAGIC);
+        this.registerDefaultMessages(views);
+        for (final RaknetMessageFactory factory : messageFactories)
+        {
+            this.registerClasses(factory.getMessageClasses());
+            this.registerDecoders(factory.getMessageDecoders());
+            this.registerValidators(factory.getMessageValidators());
+        }
+    }
+    
+    /**
+     * Returns the decoder for given message id.
+     * 
+     * @param id
+     *            the raknet message id
+     * @return the decoder or {@code null} if the message is unknown
+     */
+    RaknetMessageDecoder get(byte id)
+    {
+        return this.decoders[id & 0xFF];
+    }
+    
+    /**
+     * Validates the content of an incoming message.
+     * 
+     * @param id
+     *            the raknet message id
+     * @param buf
+     *            message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message can be decoded
+     */
+    boolean isValid(byte id, ByteBuf buf)
+    {
+        final RaknetMessageValidator validator = this.validators[id & 0xFF];
+        return validator == null || validator.isValid(buf);
+    }
+    
+    /**
+     * Returns the minimum datagram length for given message id.
+     * 
+     * @param id
+     *            the raknet message id
+     * @return minimum datagram length including the message id
+     */
+    int getMinLength(byte id)
+    {
+        return this.minLengths[id & 0xFF];
+    }
+    
+    /**
+     * Returns the maximum datagram length for given message id.
+     * 
+     * @param id
+     *            the raknet message id
+     * @return maximum datagram length including the message id
+     */
+    int getMaxLength(byte id)
+    {
+        return this.maxLengths[id & 0xFF];
+    }
+    
+    /**
+     * Returns the offset of the offline message magic for given message id.
+     * 
+     * @param id
+     *            the raknet message id
+     * @return offset relative to the message id or {@link #NO_MAGIC} if the message does not carry the magic
+     */
+    int getMagicOffset(byte id)
+    {
+        return this.magicOffsets[id & 0xFF];
+    }
+    
+    /**
+     * Registers a decoder without length restrictions.
+     * 
+     * @param id
+     *            the raknet message id
+     * @param decoder
+     *            the message decoder
+     */
+    private void register(byte id, RaknetMessageDecoder decoder)
+    {
+        this.register(id, decoder, 1, 0xFFFF, NO_MAGIC);
+    }
+    
+    /**
+     * Registers a decoder.
+     * 
+     * @param id
+     *            the raknet message id
+     * @param decoder
+     *            the message decoder
+     * @param minLength
+     *            the minimum datagram length including the message id
+     * @param maxLength
+     *            the maximum datagram length including the message id
+     * @param magicOffset
+     *            the offset of the offline message magic relative to the message id or {@link #NO_MAGIC}
+     */
+    private void register(byte id, RaknetMessageDecoder decoder, int minLength, int maxLength, int magicOffset)
+    {
+        this.decoders[id & 0xFF] = decoder;
+        this.validators[id & 0xFF] = null;
+        this.minLengths[id & 0xFF] = minLength;
+        this.maxLengths[id & 0xFF] = maxLength;
+        this.magicOffsets[id & 0xFF] = magicOffset;
+    }
+    
+    /**
+     * Registers the message decoders.
+     * 
+     * @param decoderMap
+     *            the message decoders.
+     */
+    private void registerDecoders(Map<Byte, RaknetMessageDecoder> decoderMap)
+    {
+        if (decoderMap != null)
+        {
+            for (final Map.Entry<Byte, RaknetMessageDecoder> entry : decoderMap.entrySet())
+            {
+                this.register(entry.getKey().byteValue(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Registers the message validators.
+     * 
+     * @param validatorMap
+     *            the message validators.
+     */
+    private void registerValidators(Map<Byte, RaknetMessageValidator> validatorMap)
+    {
+        if (validatorMap != null)
+        {
+            for (final Map.Entry<Byte, RaknetMessageValidator> entry : validatorMap.entrySet())
+            {
+                this.validators[entry.getKey().byteValue() & 0xFF] = entry.getValue();
+            }
+        }
+    }
+    
+    /**
+     * Register message classes.
+     * 
+     * @param classMap
+     *            the message classes.
+     */
+    private void registerClasses(Map<Byte, Class<? extends RaknetMessage>> classMap)
+    {
+        if (classMap != null)
+        {
+            for (final Map.Entry<Byte, Class<? extends RaknetMessage>> entry : classMap.entrySet())
+            {
+                try
+                {
+                    final Constructor<? extends RaknetMessage> ctor = entry.getValue().getConstructor(ByteBuf.class, InetSocketAddress.class, InetSocketAddress.class);
+                    this.register(entry.getKey().byteValue(), new ConstructorDecoder(ctor));
+                }
+                catch (NoSuchMethodException ex)
+                {
+                    RaknetServer.LOGGER.log(Level.WARNING, "Invalid raknet message", ex); //$NON-NLS-1$
+                }
+            }
+        }
+    }
+    
+    /**
+     * Registers the messages of the standard protocol.
+     * 
+     * @param views
+     *            {@code true} to decode handshake and out of band messages as views of the incoming datagram
+     */
+    private void registerDefaultMessages(boolean views)
+    {
+        // lengths include the message id
+        this.register(ConnectedPing.ID, ConnectedPing::newInstance, 9, 9, NO_MAGIC);
+        this.register(ConnectedPong.ID, ConnectedPong::newInstance, 17, 17, NO_MAGIC);
+        this.register(ConnectionRequest.ID, views ? (buf, sender, receiver) -> new ConnectionRequest(buf, sender, receiver, true) : ConnectionRequest::new, 18,
+                18 + 33 + RaknetMessage.EASYHANDSHAKE_IDENTITY_BYTES, NO_MAGIC);
+        this.register(DetectLostConnections.ID, DetectLostConnections::newInstance, 1, 1, NO_MAGIC);
+        this.register(OpenConnectionReply1.ID, OpenConnectionReply1::new, 28, 32 + RaknetMessage.EASYHANDSHAKE_PUBLIC_KEY_BYTES, 1);
+        this.register(OpenConnectionReply2.ID, OpenConnectionReply2::new, 30, 30 + RaknetMessage.EASYHANDSHAKE_ANSWER_BYTES, 1);
+        this.register(OpenConnectionRequest1.ID, views ? (buf, sender, receiver) -> new OpenConnectionRequest1(buf, sender, receiver, true) : OpenConnectionRequest1::new, 18,
+                RaknetMessage.MAXIMUM_MTU_SIZE, 1);
+        this.register(OpenConnectionRequest2.ID, views ? (buf, sender, receiver) -> new OpenConnectionRequest2(buf, sender, receiver, true) : OpenConnectionRequest2::new,
+                1 + RaknetMessage.MAGIC_BYTES + SystemAddress.SIZE_IPV4 + 10, 1 + RaknetMessage.MAGIC_BYTES + 5 + RaknetMessage.EASYHANDSHAKE_CHALLENGE_BYTES + SystemAddress.SIZE_IPV6 + 10, 1);
+        this.register(OurSystemRequiresSecurity.ID, OurSystemRequiresSecurity::new, 1, 1, NO_MAGIC);
+        this.register(OutOfBandInternal.ID, views ? (buf, sender, receiver) -> new OutOfBandInternal(buf, sender, receiver, true) : OutOfBandInternal::new, 25,
+                RaknetMessage.MAXIMUM_MTU_SIZE, 9);
+        this.register(PublicKeyMismatch.ID, PublicKeyMismatch::new, 1, 1, NO_MAGIC);
+        this.register(RemoteSystemRequiresPublicKey.ID, RemoteSystemRequiresPublicKey::new, 2, 2, NO_MAGIC);
+        this.register(SndReceiptAcked.ID, SndReceiptAcked::new, 5, 5, NO_MAGIC);
+        this.register(SndReceiptLoss.ID, SndReceiptLoss::new, 5, 5, NO_MAGIC);
+        // unconnected pings may be followed by the client guid
+        this.register(UnconnectedPing.ID, UnconnectedPing::new, 25, 33, 9);
+        this.register(UnconnectedPingOpenConnections.ID, UnconnectedPingOpenConnections::new, 25, 33, 9);
+        
+        // messages with optional blocks
+        this.validators[ConnectionRequest.ID] = ConnectionRequest::isValid;
+        this.validators[OpenConnectionReply1.ID] = OpenConnectionReply1::isValid;
+        this.validators[OpenConnectionReply2.ID] = OpenConnectionReply2::isValid;
+        this.validators[OpenConnectionRequest2.ID] = OpenConnectionRequest2::isValid;
+        this.validators[RemoteSystemRequiresPublicKey.ID] = RemoteSystemRequiresPublicKey::isValid;
+    }
+    
+    /**
+     * Decoder for message classes registered via {@link RaknetMessageFactory#getMessageClasses()}.
+     */
+    private static final class ConstructorDecoder implements RaknetMessageDecoder
+    {
+        
+        /** the message constructor */
+        private final Constructor<? extends RaknetMessage> ctor;
+        
+        /**
+         * Constructor.
+         * 
+         * @param ctor
+         *            the message constructor
+         */
+        ConstructorDecoder(Constructor<? extends RaknetMessage> ctor)
+        {
+            this.ctor = ctor;
+        }
+        
+        @Override
+        public RaknetMessage decode(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
+        {
+            try
+            {
+                return this.ctor.newInstance(buf, sender, receiver);
+            }
+            catch (InvocationTargetException ex)
+            {
+                if (ex.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IllegalStateException(ex.getCause());
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,45 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Checks incoming network data before a raknet message is decoded.
+ * 
+ * <p>
+ * Validators must not modify the reader index; use the absolute get methods of {@link ByteBuf}. A message that passed its validator must be parsable without exceeding the
+ * buffer. Typically a method reference, for example {@code ConnectionRequest::isValid}.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+@FunctionalInterface
+public interface RaknetMessageValidator
+{
+    
+    /**
+     * Checks the incoming data.
+     * 
+     * @param buf
+     *            message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message can be decoded
+     */
+    boolean isValid(ByteBuf buf);
+    
+}
@@ -0,0 +1,219 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * The outbound path of a single sender event loop.
+ * 
+ * <p>
+ * Sessions enqueue their outgoing messages into a lock free multi producer single consumer queue. The sender loop drains the queue once per iteration, encodes
+ * the messages into datagrams and hands them to the channels with a single write task and flush per channel. The pending bytes of the sessions are
+ * released once the last datagram of a channel batch was written.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+class RaknetSender implements Runnable
+{
+    
+    /** the logger */
+    private static final Logger                     LOGGER    = Logger.getLogger(RaknetSender.class.getName());
+    
+    /** the sender event loop */
+    private final EventLoop                         loop;
+    
+    /** the pending messages */
+    private final Queue<Outgoing>                   queue     = PlatformDependent.newMpscQueue();
+    
+    /** true if a drain is scheduled on the sender loop */
+    private final AtomicBoolean                     scheduled = new AtomicBoolean();
+    
+    /** the encoded messages per channel; only accessed by the sender loop */
+    private final Map<Channel, List<Outgoing>>      datagrams = new IdentityHashMap<>();
+    
+    /**
+     * Constructor.
+     * 
+     * @param loop
+     *            the sender event loop
+     */
+    RaknetSender(EventLoop loop)
+    {
+        this.loop = loop;
+    }
+    
+    /**
+     * Returns the sender event loop.
+     * 
+     * @return sender event loop
+     */
+    EventLoop getLoop()
+    {
+        return this.loop;
+    }
+    
+    /**
+     * Enqueues an outgoing message; may be invoked from any thread.
+     * 
+     * @param session
+     *            the sending session
+     * @param msg
+     *            the message; reference counted messages are released after encoding
+     * @param size
+     *            the encoded size of the message
+     */
+    void send(RaknetSessionImpl session, RaknetMessage msg, int size)
+    {
+        this.queue.offer(new Outgoing(session, msg, size));
+        if (this.scheduled.compareAndSet(false, true))
+        {
+            this.loop.execute(this);
+        }
+    }
+    
+    @Override
+    public void run()
+    {
+        this.scheduled.set(false);
+        Outgoing outgoing;
+        while ((outgoing = this.queue.poll()) != null)
+        {
+            this.encode(outgoing);
+        }
+        
+        for (final Map.Entry<Channel, List<Outgoing>> entry : this.datagrams.entrySet())
+        {
+            final Channel channel = entry.getKey();
+            final Outgoing[] batch = entry.getValue().toArray(new Outgoing[entry.getValue().size()]);
+            channel.eventLoop().execute(() -> {
+                final int last = batch.length - 1;
+                for (int i = 0; i < last; i++)
+                {
+                    channel.write(batch[i].packet, channel.voidPromise());
+                }
+                // datagrams are written in order; the last one completes the batch
+                channel.write(batch[last].packet).addListener(future -> {
+                    for (final Outgoing written : batch)
+                    {
+                        written.session.addPendingBytes(-written.size);
+                    }
+                });
+                channel.flush();
+            });
+        }
+        this.datagrams.clear();
+    }
+    
+    /**
+     * Encodes a message into a datagram of its session channel.
+     * 
+     * @param outgoing
+     *            the outgoing message
+     */
+    private void encode(Outgoing outgoing)
+    {
+        final RaknetSessionImpl session = outgoing.session;
+        final RaknetMessage msg = outgoing.msg;
+        try
+        {
+            final Channel channel = session.getChannel();
+            final ByteBuf buf = channel.alloc().directBuffer(outgoing.size);
+            try
+            {
+                msg.encodeTo(buf);
+            }
+            catch (RuntimeException ex)
+            {
+                buf.release();
+                throw ex;
+            }
+            outgoing.packet = new DatagramPacket(buf, session.getKey().getFrom(), session.getKey().getTo());
+            List<Outgoing> batch = this.datagrams.get(channel);
+            if (batch == null)
+            {
+                batch = new ArrayList<>();
+                this.datagrams.put(channel, batch);
+            }
+            batch.add(outgoing);
+        }
+        catch (RuntimeException ex)
+        {
+            session.addPendingBytes(-outgoing.size);
+            LOGGER.log(Level.WARNING, "Failed encoding outgoing message " + msg, ex); //$NON-NLS-1$
+        }
+        finally
+        {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+    
+    /**
+     * An outgoing message.
+     */
+    private static final class Outgoing
+    {
+        
+        /** the sending session */
+        final RaknetSessionImpl session;
+        
+        /** the message */
+        final RaknetMessage     msg;
+        
+        /** the encoded size of the message */
+        final int               size;
+        
+        /** the encoded datagram */
+        DatagramPacket          packet;
+        
+        /**
+         * Constructor.
+         * 
+         * @param session
+         *            the sending session
+         * @param msg
+         *            the message
+         * @param size
+         *            the encoded size of the message
+         */
+        Outgoing(RaknetSessionImpl session, RaknetMessage msg, int size)
+        {
+            this.session = session;
+            this.msg = msg;
+            this.size = size;
+        }
+        
+    }
+    
+}
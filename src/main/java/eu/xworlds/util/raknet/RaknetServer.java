@@ -19,31 +19,37 @@ package eu.xworlds.util.raknet;
 
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
-
+import eu.xworlds.util.raknet.protocol.TargetedMessage;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.FixedRecvByteBufAllocator;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.GenericFutureListener;
 
 /**
@@ -90,14 +96,29 @@ public class RaknetServer
     private int                                              sendBuffer;
     
     /**
-     * The sender nio worker group.
+     * The sender worker group.
      */
-    private NioEventLoopGroup                                senderGroup;
+    private EventLoopGroup                                   senderGroup;
     
     /**
-     * The receiver nio working group.
+     * The outbound paths of the sender loops.
      */
-    private NioEventLoopGroup                                receiverGroup;
+    private final Map<EventExecutor, RaknetSender>           senders           = new IdentityHashMap<>();
+    
+    /**
+     * The session tasks of the event loops owning sessions.
+     */
+    private final Map<EventExecutor, RaknetSessionExecutor>  executors         = new IdentityHashMap<>();
+    
+    /**
+     * The receiver working group.
+     */
+    private EventLoopGroup                                   receiverGroup;
+    
+    /**
+     * The network transport.
+     */
+    private final RaknetTransport                            transport;
     
     /**
      * The futures for binding.
@@ -110,9 +131,9 @@ public class RaknetServer
     final Collection<ChannelFuture>                          closeFutures      = new ConcurrentLinkedQueue<>();
     
     /**
-     * The channels where network traffic is incomming.
+     * The channels where network traffic is incomming; more than one per address if bound with SO_REUSEPORT.
      */
-    final Map<InetSocketAddress, Channel>                    incommingChannels = new HashMap<>();
+    final Map<InetSocketAddress, List<Channel>>              incommingChannels = new HashMap<>();
     
     /**
      * The closing flag
@@ -128,9 +149,59 @@ public class RaknetServer
     final long                                               startupTime       = ManagementFactory.getRuntimeMXBean().getUptime();
     
     /**
-     * The session cache.
+     * The established sessions.
+     */
+    private final RaknetSessionTable                         sessions;
+    
+    /**
+     * The session read timeout in nano seconds.
+     */
+    private final long                                       sessionTimeout;
+    
+    /**
+     * The established sessions by client guid.
+     */
+    private final Map<Long, RaknetSessionImpl>               guids             = new ConcurrentHashMap<>();
+    
+    /**
+     * true to migrate sessions to the new address of a known client guid.
+     */
+    private final boolean                                    sessionMigration;
+    
+    /**
+     * true to answer open connection requests with a cookie the client has to echo.
+     */
+    final boolean                                            handshakeCookies;
+    
+    /**
+     * the number of sessions migrated to a new address
+     */
+    final LongAdder                                          migratedSessions  = new LongAdder();
+    
+    /**
+     * the number of sessions rejected because the session table was full
+     */
+    final LongAdder                                          rejectedSessions  = new LongAdder();
+    
+    /**
+     * The connection handshakes of the receiver event loops.
+     */
+    private final Map<EventExecutor, RaknetHandshakeTable>   handshakes        = new IdentityHashMap<>();
+    
+    /**
+     * The random guid of this server.
      */
-    private final LoadingCache<InetSocketCon, RaknetSession> sessions;
+    private final long                                       serverGuid;
+    
+    /**
+     * the number of half open connections evicted by new peers
+     */
+    final LongAdder                                          evictedHandshakes = new LongAdder();
+    
+    /**
+     * the number of open connection and connection requests dropped because the peer did not complete the handshake
+     */
+    final LongAdder                                          rejectedHandshakes = new LongAdder();
     
     /**
      * The factories to create netty channel handlers
@@ -143,9 +214,39 @@ public class RaknetServer
     final RaknetHandlerFactory[]                             handlerFactories;
     
     /**
-     * the factories to register additional raknet message classes
+     * the number of datagrams dropped because they are no raknet traffic
      */
-    final RaknetMessageFactory[]                             messageFactories;
+    final LongAdder                                          droppedDatagrams  = new LongAdder();
+    
+    /**
+     * the number of invalid raknet messages (unknown id or malformed content)
+     */
+    final LongAdder                                          invalidMessages   = new LongAdder();
+    
+    /**
+     * the number of datagrams dropped because they exceed the maximum datagram size
+     */
+    final LongAdder                                          oversizeDatagrams = new LongAdder();
+    
+    /**
+     * the maximum size of incoming datagrams
+     */
+    final int                                                maxDatagramSize;
+    
+    /**
+     * true to drop invalid messages instead of passing them to the pipeline
+     */
+    final boolean                                            dropInvalidMessages;
+    
+    /**
+     * true to coalesce outgoing datagrams with segmentation offload.
+     */
+    final boolean                                            segmentationOffload;
+    
+    /**
+     * the well known raknet messages; shared by all channels
+     */
+    final RaknetMessageTable                                 messageTable;
     
     /**
      * Hidden constructor.
@@ -159,9 +260,9 @@ public class RaknetServer
      * @param sendBuffer
      *            the send buffer size.
      * @param sGroup
-     *            the sender nio group.
+     *            the sender group.
      * @param rGroup
-     *            the receiver nio group.
+     *            the receiver group.
      * @param sessionReadTimeout
      *            the raknet session read timeout in milliseconds
      * @param pFactories
@@ -170,35 +271,195 @@ public class RaknetServer
      *            the factories to register additional raknet message handlers
      * @param mFactories
      *            the factories to register additional raknet message classes
+     * @param messageViews
+     *            {@code true} to decode handshake and out of band messages as views of the incoming datagram
+     * @param dropInvalidMessages
+     *            {@code true} to drop invalid messages instead of passing them to the pipeline
+     * @param transport
+     *            the concrete network transport matching the groups
+     * @param socketsPerInterface
+     *            the number of sockets bound to each address with SO_REUSEPORT; 0 for one socket per receiver event loop; 1 to disable SO_REUSEPORT
+     * @param receiveBatchSize
+     *            the maximum number of datagrams read with a single system call; 1 to disable batched reads
+     * @param sendBatchSize
+     *            the maximum number of datagrams written with a single system call; 0 for the transport default
+     * @param segmentationOffload
+     *            {@code true} to send consecutive datagrams with segmentation offload if supported by the transport
+     * @param maxDatagramSize
+     *            the maximum size of incoming datagrams; sizes the receive buffers
+     * @param waterMark
+     *            the write buffer watermarks of channels and sessions
+     * @param maxSessions
+     *            the maximum number of sessions
+     * @param sessionMigration
+     *            {@code true} to migrate sessions to the new address of a known client guid
+     * @param handshakeCapacity
+     *            the number of half open connections per receiver event loop
+     * @param handshakeTimeout
+     *            the handshake timeout in milli seconds
+     * @param handshakeCookies
+     *            {@code true} to answer open connection requests with a cookie the client has to echo
      */
-    RaknetServer(InetSocketAddress[] addresses, RaknetServerListener[] serverListeners, int recvBuffer, int sendBuffer, NioEventLoopGroup sGroup, NioEventLoopGroup rGroup, int sessionReadTimeout,
-            RaknetPipelineFactory[] pFactories, RaknetMessageFactory[] mFactories, RaknetHandlerFactory[] hFactories)
+    RaknetServer(InetSocketAddress[] addresses, RaknetServerListener[] serverListeners, int recvBuffer, int sendBuffer, EventLoopGroup sGroup, EventLoopGroup rGroup, int sessionReadTimeout,
+            RaknetPipelineFactory[] pFactories, RaknetMessageFactory[] mFactories, RaknetHandlerFactory[] hFactories, boolean messageViews,
+            boolean dropInvalidMessages, RaknetTransport transport, int socketsPerInterface,
+            int receiveBatchSize, int sendBatchSize, boolean segmentationOffload, int maxDatagramSize,
+            WriteBufferWaterMark waterMark, int maxSessions, boolean sessionMigration,
+            int handshakeCapacity, int handshakeTimeout, boolean handshakeCookies)
     {
         // this.addresses = addresses;
         this.serverListeners = serverListeners;
         this.recvBuffer = recvBuffer;
+        this.maxDatagramSize = maxDatagramSize;
         this.sendBuffer = sendBuffer;
         this.senderGroup = sGroup;
+        for (final EventExecutor executor : sGroup)
+        {
+            this.senders.put(executor, new RaknetSender((EventLoop) executor));
+        }
         this.receiverGroup = rGroup;
+        // sessions are owned by the loop of their channel; sessions without channel by their sender loop
+        for (final EventExecutor executor : rGroup)
+        {
+            this.executors.put(executor, new RaknetSessionExecutor((EventLoop) executor));
+        }
+        for (final EventExecutor executor : sGroup)
+        {
+            this.executors.computeIfAbsent(executor, loop -> new RaknetSessionExecutor((EventLoop) loop));
+        }
+        this.transport = transport;
         
         this.pipelineFactories = pFactories;
         this.handlerFactories = hFactories;
-        this.messageFactories = mFactories;
+        this.messageTable = new RaknetMessageTable(mFactories, messageViews);
+        this.dropInvalidMessages = dropInvalidMessages;
+        this.segmentationOffload = segmentationOffload && transport.supportsSegmentationOffload();
+        
+        this.sessions = new RaknetSessionTable(maxSessions, this.rejectedSessions);
+        this.sessionTimeout = TimeUnit.MILLISECONDS.toNanos(sessionReadTimeout);
+        this.sessionMigration = sessionMigration;
+        this.handshakeCookies = handshakeCookies;
+        final SecureRandom random = new SecureRandom();
+        this.serverGuid = random.nextLong();
+        // the secret keying the handshake cookies never leaves this server
+        final byte[] secret = handshakeCookies ? new byte[32] : null;
+        if (secret != null)
+        {
+            random.nextBytes(secret);
+        }
+        for (final EventExecutor executor : rGroup)
+        {
+            this.handshakes.put(executor, new RaknetHandshakeTable(handshakeCapacity, TimeUnit.MILLISECONDS.toNanos(handshakeTimeout), this.evictedHandshakes, secret));
+        }
         
-        this.sessions = CacheBuilder.newBuilder().maximumSize(1000). // TODO read from builder
-                expireAfterAccess(sessionReadTimeout, TimeUnit.MILLISECONDS).removalListener(new SessionRemovalListener()).build(new SessionCacheLoader());
-                
         final Bootstrap b = new Bootstrap();
-        b.group(this.receiverGroup).channel(NioDatagramChannel.class).option(ChannelOption.SO_REUSEADDR, Boolean.TRUE).option(ChannelOption.SO_RCVBUF, Integer.valueOf(this.recvBuffer))
-                .option(ChannelOption.SO_SNDBUF, Integer.valueOf(this.sendBuffer)).option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(this.recvBuffer))
-                .handler(new RaknetInitializer());
-                
-        for (final InetSocketAddress address : addresses)
+        b.channel(transport.getChannelClass()).option(ChannelOption.SO_REUSEADDR, Boolean.TRUE).option(ChannelOption.SO_RCVBUF, Integer.valueOf(this.recvBuffer))
+                .option(ChannelOption.SO_SNDBUF, Integer.valueOf(this.sendBuffer)).option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                // one spare byte per datagram to detect datagrams truncated by the kernel
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator((maxDatagramSize + 1) * receiveBatchSize)).handler(new RaknetInitializer());
+        if (receiveBatchSize != 1 || sendBatchSize != 0)
+        {
+            transport.setBatchedIo(b, maxDatagramSize + 1, receiveBatchSize, sendBatchSize);
+        }
+        
+        if (socketsPerInterface == 1)
+        {
+            b.group(this.receiverGroup);
+            for (final InetSocketAddress address : addresses)
+            {
+                this.listenFutures.add(this.bootstrapFor(b, address).bind(address).addListener(new BindListener()));
+            }
+        }
+        else
+        {
+            // pin each socket to its own receiver loop
+            transport.setReusePort(b);
+            final List<EventLoop> loops = new ArrayList<>();
+            for (final EventExecutor executor : this.receiverGroup)
+            {
+                loops.add((EventLoop) executor);
+            }
+            final int sockets = socketsPerInterface == 0 ? loops.size() : socketsPerInterface;
+            for (final InetSocketAddress address : addresses)
+            {
+                for (int i = 0; i < sockets; i++)
+                {
+                    this.listenFutures.add(this.bootstrapFor(b, address).clone().group(loops.get(i % loops.size())).bind(address).addListener(new BindListener()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the bootstrap for binding given address.
+     * 
+     * <p>
+     * Wildcard addresses learn the destination address of each datagram if the transport supports it. The destination address becomes the local part of the
+     * session key, so a single wildcard socket serves all local addresses. Replies are sent from the source address chosen by the kernel routing; netty cannot
+     * set the source address through {@code IP_PKTINFO} on send.
+     * </p>
+     * 
+     * @param b
+     *            the shared bootstrap
+     * @param address
+     *            the address to bind
+     * @return bootstrap for the address
+     */
+    private Bootstrap bootstrapFor(Bootstrap b, InetSocketAddress address)
+    {
+        if (!address.getAddress().isAnyLocalAddress())
+        {
+            return b;
+        }
+        if (!this.transport.supportsDestinationAddress())
+        {
+            LOGGER.warning("Transport " + this.transport + " does not report destination addresses; sessions on " + address //$NON-NLS-1$ //$NON-NLS-2$
+                    + " share the wildcard address and replies leave from the address chosen by the kernel routing"); //$NON-NLS-1$
+            return b;
+        }
+        final Bootstrap result = b.clone();
+        this.transport.setDestinationAddress(result);
+        return result;
+    }
+    
+    /**
+     * Returns the incomming channel for given local address.
+     * 
+     * @param address
+     *            the local address
+     * @return channel bound to the address or to the wildcard address of the same port; {@code null} if there is no such channel
+     */
+    Channel getIncommingChannel(InetSocketAddress address)
+    {
+        synchronized (this.incommingChannels)
         {
-            this.listenFutures.add(b.bind(address).addListener(new BindListener()));
+            List<Channel> channels = this.incommingChannels.get(address);
+            if (channels == null)
+            {
+                for (final Map.Entry<InetSocketAddress, List<Channel>> entry : this.incommingChannels.entrySet())
+                {
+                    if (entry.getKey().getPort() == address.getPort() && entry.getKey().getAddress().isAnyLocalAddress())
+                    {
+                        channels = entry.getValue();
+                        break;
+                    }
+                }
+            }
+            return channels == null || channels.isEmpty() ? null : channels.get(0);
         }
     }
     
+    /**
+     * Returns the network transport.
+     * 
+     * @return network transport; never {@link RaknetTransport#AUTO}
+     */
+    public RaknetTransport getTransport()
+    {
+        return this.transport;
+    }
+    
     /**
      * Terminates the server.
      */
@@ -207,9 +468,12 @@ public class RaknetServer
         synchronized (this.incommingChannels)
         {
             this.isClosing = true;
-            for (final Channel channel : this.incommingChannels.values())
+            for (final List<Channel> channels : this.incommingChannels.values())
             {
-                channel.close();
+                for (final Channel channel : channels)
+                {
+                    channel.close();
+                }
             }
         }
     }
@@ -269,7 +533,13 @@ public class RaknetServer
                     }
                     else
                     {
-                        RaknetServer.this.incommingChannels.put((InetSocketAddress) channel.localAddress(), channel);
+                        List<Channel> channels = RaknetServer.this.incommingChannels.get(channel.localAddress());
+                        if (channels == null)
+                        {
+                            channels = new ArrayList<>();
+                            RaknetServer.this.incommingChannels.put((InetSocketAddress) channel.localAddress(), channels);
+                        }
+                        channels.add(channel);
                         for (final RaknetServerListener listener : RaknetServer.this.serverListeners)
                         {
                             listener.onBindSucceeded(channel);
@@ -320,7 +590,7 @@ public class RaknetServer
      * Initializer for the raknet channel.
      *
      */
-    private final class RaknetInitializer extends ChannelInitializer<NioDatagramChannel>
+    private final class RaknetInitializer extends ChannelInitializer<DatagramChannel>
     {
         
         /**
@@ -332,16 +602,21 @@ public class RaknetServer
         }
         
         @Override
-        protected void initChannel(NioDatagramChannel ch) throws Exception
+        protected void initChannel(DatagramChannel ch) throws Exception
         {
             final ChannelPipeline p = ch.pipeline();
+            if (RaknetServer.this.segmentationOffload)
+            {
+                p.addLast(new SegmentationHandler());
+            }
             p.addLast(new ConnectionHandler(RaknetServer.this.serverListeners));
-            p.addLast(new RaknetDecoder(RaknetServer.this.messageFactories));
+            p.addLast(new RaknetDecoder(RaknetServer.this.messageTable, RaknetServer.this.droppedDatagrams, RaknetServer.this.invalidMessages,
+                    RaknetServer.this.dropInvalidMessages, RaknetServer.this.maxDatagramSize, RaknetServer.this.oversizeDatagrams));
             if (RaknetServer.this.isTracing)
             {
                 p.addLast(new RaknetTrace());
             }
-            p.addLast(new RaknetHandler(RaknetServer.this, RaknetServer.this.handlerFactories));
+            p.addLast(new RaknetHandler(RaknetServer.this, RaknetServer.this.handlerFactories, RaknetServer.this.handshakes.get(ch.eventLoop())));
             
             for (final RaknetPipelineFactory factory : RaknetServer.this.pipelineFactories)
             {
@@ -358,6 +633,39 @@ public class RaknetServer
         
     }
     
+    /**
+     * Returns the guid this server announces in the connection handshake.
+     * 
+     * @return server guid; random per server instance
+     */
+    public long getServerGuid()
+    {
+        return this.serverGuid;
+    }
+    
+    /**
+     * Sends a message to a peer without session.
+     * 
+     * @param channel
+     *            the channel the peer sent to
+     * @param msg
+     *            the message; its sender is the local and its receiver the remote address
+     */
+    void reply(Channel channel, TargetedMessage msg)
+    {
+        final ByteBuf buf = channel.alloc().directBuffer(msg.encodedSize());
+        try
+        {
+            msg.encodeTo(buf);
+        }
+        catch (RuntimeException ex)
+        {
+            buf.release();
+            throw ex;
+        }
+        channel.writeAndFlush(new DatagramPacket(buf, msg.getReceiver(), msg.getSender()), channel.voidPromise());
+    }
+    
     /**
      * Returns the racnet time in milliseconds.
      * 
@@ -369,28 +677,195 @@ public class RaknetServer
     }
     
     /**
-     * Helper class to watch for network timeouts/ inactive sessions
+     * Returns the number of datagrams dropped because they are no raknet traffic (invalid length or missing offline message magic).
+     * 
+     * @return number of dropped datagrams
      */
-    private final class SessionRemovalListener implements RemovalListener<InetSocketCon, RaknetSession>
+    public long getDroppedDatagrams()
     {
-        
-        /**
-         * 
-         */
-        public SessionRemovalListener()
+        return this.droppedDatagrams.sum();
+    }
+    
+    /**
+     * Returns the number of datagrams dropped because they exceeded the maximum datagram size and were truncated on receive.
+     * 
+     * @return number of oversize datagrams
+     */
+    public long getOversizeDatagrams()
+    {
+        return this.oversizeDatagrams.sum();
+    }
+    
+    /**
+     * Returns the number of invalid raknet messages (unknown message id or malformed content).
+     * 
+     * @return number of invalid messages
+     */
+    public long getInvalidMessages()
+    {
+        return this.invalidMessages.sum();
+    }
+    
+    /**
+     * Returns the number of sessions rejected because the maximum number of sessions was reached.
+     * 
+     * @return number of rejected sessions
+     */
+    public long getRejectedSessions()
+    {
+        return this.rejectedSessions.sum();
+    }
+    
+    /**
+     * Returns the number of established sessions.
+     * 
+     * @return number of sessions
+     */
+    public int getSessionCount()
+    {
+        return this.sessions.size();
+    }
+    
+    /**
+     * Returns the number of half open connections evicted by the handshakes of new peers.
+     * 
+     * @return number of evicted handshakes
+     */
+    public long getEvictedHandshakes()
+    {
+        return this.evictedHandshakes.sum();
+    }
+    
+    /**
+     * Returns the number of handshake messages dropped because the peer skipped a step of the connection handshake, did not echo a valid cookie or requested
+     * an mtu size below the minimum.
+     * 
+     * @return number of rejected handshakes
+     */
+    public long getRejectedHandshakes()
+    {
+        return this.rejectedHandshakes.sum();
+    }
+    
+    /**
+     * Removes a session after its read timeout expired and notifies the server listeners; invoked on the event loop owning the session.
+     * 
+     * @param session
+     *            the inactive session
+     */
+    void expireSession(RaknetSessionImpl session)
+    {
+        if (this.sessions.remove(session))
         {
-            // empty
+            this.guids.remove(Long.valueOf(session.getGuid()), session);
+            session.cancelTimers();
+            session.setConnectionState(ConnectionState.IS_DISCONNECTED, ConnectMode.NO_ACTION);
+            for (final RaknetServerListener listener : this.serverListeners)
+            {
+                listener.onRemoval(session);
+            }
         }
-        
-        @Override
-        public void onRemoval(RemovalNotification<InetSocketCon, RaknetSession> notification)
+    }
+    
+    /**
+     * Returns the number of sessions that migrated to a new remote address.
+     * 
+     * @return number of migrated sessions
+     */
+    public long getMigratedSessions()
+    {
+        return this.migratedSessions.sum();
+    }
+    
+    /**
+     * Records the guid a client announced during the connection handshake.
+     * 
+     * <p>
+     * If there is no session for the connection but a session for the guid and migration is requested, the session of the guid moves to the connection. The
+     * move runs on the event loop owning the session; it may complete after this method returned. Otherwise a session is created if requested; created sessions
+     * are connected and handle the connection request.
+     * </p>
+     * 
+     * @param guid
+     *            the client guid
+     * @param from
+     *            sender address
+     * @param to
+     *            receiver address
+     * @param channel
+     *            the channel the message was received on
+     * @param migrate
+     *            {@code true} for connection requests that completed the handshake from the new address and may migrate the session of the guid
+     * @param connect
+     *            {@code true} for connection requests that completed the handshake and may create sessions; {@code false} to only index existing sessions
+     * @return the session, the migrating session or {@code null} if there is no session
+     */
+    RaknetSessionImpl trackGuid(long guid, InetSocketAddress from, InetSocketAddress to, Channel channel, boolean migrate, boolean connect)
+    {
+        final Long key = Long.valueOf(guid);
+        RaknetSessionImpl session = this.sessions.get(from, to);
+        if (session == null && migrate && this.sessionMigration)
         {
-            for (final RaknetServerListener listener : RaknetServer.this.serverListeners)
+            final RaknetSessionImpl previous = this.guids.get(key);
+            if (previous != null)
             {
-                listener.onRemoval(notification.getValue());
+                this.migrate(previous, new InetSocketCon(from, to), channel);
+                return previous;
             }
         }
-        
+        if (session == null && connect)
+        {
+            session = this.getOrCreateSession(from, to, channel);
+            if (session != null)
+            {
+                session.setConnectionState(ConnectionState.IS_CONNECTED, ConnectMode.HANDLING_CONNECTION_REQUEST);
+            }
+        }
+        if (session != null && session.getGuid() != guid)
+        {
+            this.guids.remove(Long.valueOf(session.getGuid()), session);
+            session.setGuid(guid);
+            this.guids.put(key, session);
+        }
+        return session;
+    }
+    
+    /**
+     * Moves a session to another connection on the event loop owning it and hands it over to the event loop of the new channel.
+     * 
+     * @param session
+     *            the session to move
+     * @param key
+     *            the new connection key
+     * @param channel
+     *            the channel of the new connection
+     */
+    private void migrate(RaknetSessionImpl session, InetSocketCon key, Channel channel)
+    {
+        if (!session.inEventLoop())
+        {
+            session.execute(() -> this.migrate(session, key, channel));
+            return;
+        }
+        final InetSocketAddress previousAddress = session.getKey().getFrom();
+        if (!this.sessions.migrate(session, key, channel))
+        {
+            // moved by an earlier request or the address is taken
+            return;
+        }
+        this.migratedSessions.increment();
+        final RaknetSessionExecutor target = this.executors.get(channel.eventLoop());
+        if (target != null)
+        {
+            session.rehome(target);
+        }
+        session.execute(() -> {
+            session.touch();
+            for (final RaknetServerListener listener : this.serverListeners)
+            {
+                listener.onMigration(session, previousAddress);
+            }
+        });
     }
     
     /**
@@ -400,20 +875,42 @@ public class RaknetServer
      *            sender address
      * @param to
      *            receiver address
-     * @return raknet session or {@code null} if the address is blacklisted
-     * @throws IllegalStateException
-     *             thrown if there was a problem accessing the cache
+     * @return raknet session or {@code null} if the address is blacklisted or the maximum number of sessions is reached
      */
     public RaknetSession getOrCreateSession(final InetSocketAddress from, final InetSocketAddress to)
     {
-        try
+        final RaknetSession result = this.sessions.get(from, to);
+        if (result != null)
+        {
+            return result;
+        }
+        return this.getOrCreateSession(from, to, this.getIncommingChannel(to));
+    }
+    
+    /**
+     * Gets the session for associated connection; creates it bound to given channel if needed.
+     * 
+     * @param from
+     *            sender address
+     * @param to
+     *            receiver address
+     * @param channel
+     *            the channel the message was received on
+     * @return raknet session or {@code null} if the address is blacklisted or the maximum number of sessions is reached
+     */
+    RaknetSessionImpl getOrCreateSession(final InetSocketAddress from, final InetSocketAddress to, final Channel channel)
+    {
+        final RaknetSessionImpl result = this.sessions.get(from, to);
+        if (result != null)
         {
-            return this.sessions.get(new InetSocketCon(from, to));
+            return result;
         }
-        catch (ExecutionException ex)
+        final RaknetSessionImpl created = this.sessions.getOrCreate(from, to, key -> this.newSession(key, channel));
+        if (created != null)
         {
-            throw new IllegalStateException(ex);
+            created.touch();
         }
+        return created;
     }
     
     /**
@@ -427,37 +924,45 @@ public class RaknetServer
      */
     public RaknetSession getSessionIfPresent(final InetSocketAddress from, final InetSocketAddress to)
     {
-        return this.sessions.getIfPresent(new InetSocketCon(from, to));
+        return this.sessions.get(from, to);
     }
     
     /**
-     * Helper class to build new sessions on demand
+     * Gets the established session for associated connection
+     * 
+     * @param from
+     *            sender address
+     * @param to
+     *            receiver address
+     * @return raknet session or {@code null} if it was not found
      */
-    private final class SessionCacheLoader extends CacheLoader<InetSocketCon, RaknetSession>
+    RaknetSessionImpl findSession(final InetSocketAddress from, final InetSocketAddress to)
     {
-        
-        /**
-         * 
-         */
-        public SessionCacheLoader()
-        {
-            // empty
-        }
-        
-        @Override
-        public RaknetSession load(InetSocketCon key) throws Exception
+        return this.sessions.get(from, to);
+    }
+    
+    /**
+     * Creates a new session.
+     * 
+     * @param key
+     *            the connection key
+     * @param channel
+     *            the channel the session is bound to
+     * @return session or {@code null} if the session was blocked by a listener
+     */
+    RaknetSessionImpl newSession(InetSocketCon key, Channel channel)
+    {
+        final RaknetSender sender = this.senders.get(this.senderGroup.next());
+        final RaknetSessionExecutor executor = this.executors.get(channel == null ? sender.getLoop() : channel.eventLoop());
+        final RaknetSessionImpl session = new RaknetSessionImpl(key, channel, sender, executor, this.sessionTimeout, this::expireSession, this::getRaknetTime);
+        for (final RaknetServerListener listener : this.serverListeners)
         {
-            final RaknetSession session = new RaknetSessionImpl(key);
-            for (final RaknetServerListener listener : RaknetServer.this.serverListeners)
+            if (!listener.onNewSession(session))
             {
-                if (!listener.onNewSession(session))
-                {
-                    return null;
-                }
+                return null;
             }
-            return session;
         }
-        
+        return session;
     }
     
 }
@@ -17,15 +17,19 @@
  */
 package eu.xworlds.util.raknet;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 
-import io.netty.channel.nio.NioEventLoopGroup;
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 
 /**
  * A builder to create common raknet servers.
@@ -42,7 +46,8 @@ import io.netty.channel.nio.NioEventLoopGroup;
  * </p>
  * 
  * <p>
- * You can optimize the behaviour and tune performance by setting your own sender and worker thread group or by setting the network buffer sizes.
+ * You can optimize the behaviour and tune performance by setting your own sender and worker thread group or by setting the network buffer sizes. The
+ * network transport (java nio or native epoll) is detected automatically unless set via {@link #setTransport(RaknetTransport)}.
  * </p>
  * 
  * @author mepeisen
@@ -50,6 +55,26 @@ import io.netty.channel.nio.NioEventLoopGroup;
 public class RaknetServerBuilder
 {
     
+    /**
+     * The maximum number of datagrams per system call (UIO_MAXIOV).
+     */
+    public static final int                   MAX_BATCH_SIZE     = 1024;
+    
+    /**
+     * The smallest supported maximum datagram size (raknet minimum mtu).
+     */
+    public static final int                   MIN_DATAGRAM_SIZE  = 576;
+    
+    /**
+     * The largest supported maximum datagram size (maximum udp payload).
+     */
+    public static final int                   MAX_DATAGRAM_SIZE  = 65507;
+    
+    /**
+     * The IPv6 wildcard address.
+     */
+    private static final InetAddress          IPV6_ANY           = ipv6Any();
+    
     /**
      * The network addresses to be used.
      */
@@ -76,14 +101,59 @@ public class RaknetServerBuilder
     private final List<RaknetMessageFactory> messageFactories = new ArrayList<>();
     
     /**
-     * The nio sender group
+     * The sender group
+     */
+    private EventLoopGroup                    senderGroup;
+    
+    /**
+     * The receiver group
+     */
+    private EventLoopGroup                    receiverGroup;
+    
+    /**
+     * The network transport
+     */
+    private RaknetTransport                   transport          = RaknetTransport.AUTO;
+    
+    /**
+     * The number of sockets per interface; 0 for one socket per receiver event loop
+     */
+    private int                               socketsPerInterface = 1;
+    
+    /**
+     * The maximum number of datagrams read with a single system call
+     */
+    private int                               receiveBatchSize   = 1;
+    
+    /**
+     * The maximum number of datagrams written with a single system call; 0 for the transport default
+     */
+    private int                               sendBatchSize      = 0;
+    
+    /**
+     * true to send consecutive datagrams to the same recipient with segmentation offload
+     */
+    private boolean                           segmentationOffload = false;
+    
+    /**
+     * The maximum size of incoming datagrams
+     */
+    private int                               maxDatagramSize    = RaknetMessage.MAXIMUM_MTU_SIZE;
+    
+    /**
+     * The low write buffer watermark
      */
-    private NioEventLoopGroup                 senderGroup;
+    private int                               writeBufferLow     = 32 * 1024;
     
     /**
-     * The nio receiver group
+     * The high write buffer watermark
      */
-    private NioEventLoopGroup                 receiverGroup;
+    private int                               writeBufferHigh    = 64 * 1024;
+    
+    /**
+     * The maximum number of sessions
+     */
+    private int                               maxSessions        = 100 * 1000;
     
     /**
      * The network recv buffer
@@ -100,13 +170,61 @@ public class RaknetServerBuilder
      */
     private int                               sessionReadTimeout = 15 * 1000;        // within at least 15 seconds there should be a ping
     
+    /**
+     * true to decode handshake and out of band messages as views of the incoming datagram
+     */
+    private boolean                           messageViews       = false;
+    
+    /**
+     * true to drop invalid messages instead of passing them to the pipeline
+     */
+    private boolean                           dropInvalidMessages = false;
+    
+    /**
+     * true to migrate sessions to the new address of a known client guid
+     */
+    private boolean                           sessionMigration   = true;
+    
+    /**
+     * The number of half open connections per receiver event loop
+     */
+    private int                               handshakeCapacity  = 1024;
+    
+    /**
+     * The handshake timeout
+     */
+    private int                               handshakeTimeout   = 10 * 1000;
+    
+    /**
+     * true to answer open connection requests with a cookie the client has to echo
+     */
+    private boolean                           handshakeCookies   = false;
+    
+    /**
+     * Creates the IPv6 wildcard address.
+     * 
+     * @return IPv6 wildcard address
+     */
+    private static InetAddress ipv6Any()
+    {
+        try
+        {
+            return Inet6Address.getByAddress(new byte[16]);
+        }
+        catch (UnknownHostException ex)
+        {
+            // cannot happen for 16 byte addresses
+            throw new IllegalStateException(ex);
+        }
+    }
+    
     /**
      * Builds the server and starts connecting/binding in background.
      * 
      * @return the raknet server connecting in background.
      *         
      * @throws IllegalStateException
-     *             thrown if there was no configured network interface.
+     *             thrown if there was no configured network interface or if the transport is not available or does not match the event loop groups.
      */
     public RaknetServer build()
     {
@@ -121,10 +239,53 @@ public class RaknetServerBuilder
         final RaknetMessageFactory[] mFactories = this.messageFactories.toArray(new RaknetMessageFactory[this.messageFactories.size()]);
         final RaknetHandlerFactory[] hFactories = this.handlerFactories.toArray(new RaknetHandlerFactory[this.handlerFactories.size()]);
         
-        final NioEventLoopGroup sGroup = this.senderGroup == null ? new NioEventLoopGroup() : this.senderGroup;
-        final NioEventLoopGroup rGroup = this.receiverGroup == null ? new NioEventLoopGroup() : this.receiverGroup;
+        final RaknetTransport netTransport = this.resolveTransport();
+        final EventLoopGroup sGroup = this.senderGroup == null ? netTransport.newEventLoopGroup() : this.senderGroup;
+        final EventLoopGroup rGroup = this.receiverGroup == null ? netTransport.newEventLoopGroup() : this.receiverGroup;
         
-        final RaknetServer result = new RaknetServer(addresses, serverListeners, this.recvBuffer, this.sendBuffer, sGroup, rGroup, this.sessionReadTimeout, pFactories, mFactories, hFactories);
+        final RaknetServer result = new RaknetServer(addresses, serverListeners, this.recvBuffer, this.sendBuffer, sGroup, rGroup, this.sessionReadTimeout, pFactories, mFactories, hFactories,
+                this.messageViews, this.dropInvalidMessages, netTransport, this.socketsPerInterface,
+                this.receiveBatchSize, this.sendBatchSize, this.segmentationOffload,
+                this.maxDatagramSize, new WriteBufferWaterMark(this.writeBufferLow, this.writeBufferHigh), this.maxSessions,
+                this.sessionMigration, this.handshakeCapacity, this.handshakeTimeout, this.handshakeCookies);
+        return result;
+    }
+    
+    /**
+     * Returns the concrete transport to be used.
+     * 
+     * @return network transport
+     * @throws IllegalStateException
+     *             thrown if the transport is not available or does not match the receiver group.
+     */
+    private RaknetTransport resolveTransport()
+    {
+        RaknetTransport result = this.transport.resolve();
+        if (this.transport == RaknetTransport.AUTO && this.receiverGroup != null)
+        {
+            // follow the given group
+            result = RaknetTransport.of(this.receiverGroup);
+            if (result == null)
+            {
+                throw new IllegalStateException("Unsupported receiver group " + this.receiverGroup.getClass().getName()); //$NON-NLS-1$
+            }
+        }
+        if (!result.isAvailable())
+        {
+            throw new IllegalStateException("Transport " + result + " is not available"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if (this.receiverGroup != null && !result.isCompatible(this.receiverGroup))
+        {
+            throw new IllegalStateException("Receiver group does not match transport " + result); //$NON-NLS-1$
+        }
+        if (this.socketsPerInterface != 1 && !result.supportsReusePort())
+        {
+            throw new IllegalStateException("Transport " + result + " does not support multiple sockets per interface"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if ((this.receiveBatchSize != 1 || this.sendBatchSize != 0) && !result.supportsBatchedIo())
+        {
+            throw new IllegalStateException("Transport " + result + " does not support batched io"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
         return result;
     }
     
@@ -141,6 +302,32 @@ public class RaknetServerBuilder
         return this;
     }
     
+    /**
+     * Adds a handler factory for raknet message handlers
+     * 
+     * @param factory
+     *            the factory to add
+     * @return this builder
+     */
+    public RaknetServerBuilder addHandlerFactory(RaknetHandlerFactory factory)
+    {
+        this.handlerFactories.add(factory);
+        return this;
+    }
+    
+    /**
+     * Adds a message factory for raknet message classes
+     * 
+     * @param factory
+     *            the factory to add
+     * @return this builder
+     */
+    public RaknetServerBuilder addMessageFactory(RaknetMessageFactory factory)
+    {
+        this.messageFactories.add(factory);
+        return this;
+    }
+    
     /**
      * Sets the session read timeout in milliseconds
      * 
@@ -154,6 +341,150 @@ public class RaknetServerBuilder
         return this;
     }
     
+    /**
+     * Sets the maximum number of sessions.
+     * 
+     * <p>
+     * New connections are rejected while the maximum is reached; established sessions are never evicted to make room. Rejected connections are counted in
+     * {@link RaknetServer#getRejectedSessions()}. The session table grows on demand, so a high maximum does not reserve memory up front.
+     * </p>
+     * 
+     * @param sessions
+     *            the maximum number of sessions; defaults to 100000
+     * @return this builder
+     * @throws IllegalArgumentException
+     *             thrown if the maximum is not positive
+     */
+    public RaknetServerBuilder setMaxSessions(int sessions)
+    {
+        if (sessions < 1)
+        {
+            throw new IllegalArgumentException("sessions must be positive"); //$NON-NLS-1$
+        }
+        this.maxSessions = sessions;
+        return this;
+    }
+    
+    /**
+     * Enables or disables the message view mode.
+     * 
+     * <p>
+     * In view mode the handshake and out of band messages ({@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest1},
+     * {@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest2}, {@link eu.xworlds.util.raknet.protocol.ConnectionRequest} and
+     * {@link eu.xworlds.util.raknet.protocol.OutOfBandInternal}) do not copy their byte array fields. Instead they keep a retained slice of the incoming datagram and read
+     * those fields on demand. Handlers keeping such a message after returning must retain it.
+     * </p>
+     * 
+     * @param enabled
+     *            {@code true} to decode messages as views
+     * @return this builder
+     */
+    public RaknetServerBuilder setMessageViews(boolean enabled)
+    {
+        this.messageViews = enabled;
+        return this;
+    }
+    
+    /**
+     * Enables or disables dropping of invalid messages.
+     * 
+     * <p>
+     * By default messages with unknown ids or malformed content are passed to the pipeline as {@link eu.xworlds.util.raknet.protocol.InvalidRaknetMessage} including a copy of
+     * the payload. If dropped they are only counted, see {@link RaknetServer#getInvalidMessages()}. Dropping is recommended for servers exposed to malformed packet floods.
+     * </p>
+     * 
+     * @param enabled
+     *            {@code true} to drop invalid messages
+     * @return this builder
+     */
+    public RaknetServerBuilder setDropInvalidMessages(boolean enabled)
+    {
+        this.dropInvalidMessages = enabled;
+        return this;
+    }
+    
+    /**
+     * Enables or disables session migration.
+     * 
+     * <p>
+     * Sessions are indexed by the guid their client announced in {@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest2} and
+     * {@link eu.xworlds.util.raknet.protocol.ConnectionRequest}. If a connection request with a known guid arrives from a new address, for example after a NAT
+     * rebinding of a mobile client, the existing session moves to the new address instead of being replaced by a new session. The guid is not secret to
+     * observers of the network path, so only connection requests that completed the open connection handshake from the new address migrate the session;
+     * requests with a known guid but without handshake are dropped.
+     * </p>
+     * 
+     * @param enabled
+     *            {@code true} to migrate sessions; enabled by default
+     * @return this builder
+     */
+    public RaknetServerBuilder setSessionMigration(boolean enabled)
+    {
+        this.sessionMigration = enabled;
+        return this;
+    }
+    
+    /**
+     * Sets the limits of the half open connection table.
+     * 
+     * <p>
+     * Peers sending {@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest1} and {@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest2} are kept
+     * in a fixed size table per receiver event loop and only become sessions once they send a matching {@link eu.xworlds.util.raknet.protocol.ConnectionRequest}
+     * within the timeout. A flood of handshakes only evicts other peers in the handshake (see {@link RaknetServer#getEvictedHandshakes()}) and never
+     * established sessions. Second open connection requests without a first one (or without valid cookie, see {@link #setHandshakeCookies(boolean)}), with an
+     * mtu size below {@link eu.xworlds.util.raknet.protocol.RaknetMessage#MINIMUM_MTU_SIZE} and connection requests without handshake and without session are
+     * dropped, see {@link RaknetServer#getRejectedHandshakes()}. Migrating sessions need a completed handshake as well (see
+     * {@link #setSessionMigration(boolean)}).
+     * </p>
+     * 
+     * @param capacity
+     *            the number of half open connections per receiver event loop; rounded up to a power of two; defaults to 1024
+     * @param timeout
+     *            the handshake timeout in milli seconds; defaults to 10000
+     * @return this builder
+     * @throws IllegalArgumentException
+     *             thrown if capacity or timeout are not positive
+     */
+    public RaknetServerBuilder setHandshakeLimits(int capacity, int timeout)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity must be positive"); //$NON-NLS-1$
+        }
+        if (timeout < 1)
+        {
+            throw new IllegalArgumentException("timeout must be positive"); //$NON-NLS-1$
+        }
+        this.handshakeCapacity = capacity;
+        this.handshakeTimeout = timeout;
+        return this;
+    }
+    
+    /**
+     * Enables or disables handshake cookies.
+     * 
+     * <p>
+     * With cookies enabled the server answers {@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest1} with a stateless cookie of the client address in
+     * the security block of {@link eu.xworlds.util.raknet.protocol.OpenConnectionReply1}; only peers echoing a valid cookie in
+     * {@link eu.xworlds.util.raknet.protocol.OpenConnectionRequest2} become half open. Spoofed senders never receive a cookie, so they cannot fake a
+     * handshake. Cookies stay valid for one to two handshake timeouts.
+     * </p>
+     * 
+     * <p>
+     * Only enable cookies if all clients handle the security block of the reply. Stock clients without security support (for example the Minecraft Pocket
+     * Edition) read the cookie as mtu size and fail the handshake.
+     * </p>
+     * 
+     * @param enabled
+     *            {@code true} to send cookies; disabled by default
+     * @return this builder
+     */
+    public RaknetServerBuilder setHandshakeCookies(boolean enabled)
+    {
+        this.handshakeCookies = enabled;
+        return this;
+    }
+    
     /**
      * Adds given interface to listen for incoming traffic
      * 
@@ -172,7 +503,46 @@ public class RaknetServerBuilder
     }
     
     /**
-     * Adds all addresses fetched from local interfaces
+     * Adds the wildcard address of given port to listen for incoming traffic on all local addresses with a single socket.
+     * 
+     * <p>
+     * Transports supporting destination addresses ({@link RaknetTransport#supportsDestinationAddress()}) learn the local address of each datagram, so
+     * sessions keep the address the client connected to. Other transports share the wildcard address for all sessions. Replies are sent from the source
+     * address chosen by the kernel routing in both cases; netty cannot set the source address of a datagram through {@code IP_PKTINFO} on send and ignores
+     * the sender of outgoing datagram packets. Hosts with several addresses on the same route should bind their addresses explicitly.
+     * </p>
+     * 
+     * @param port
+     *            ip port to be used
+     * @return this builder
+     */
+    public RaknetServerBuilder addWildcardInterface(int port)
+    {
+        this.interfaces.add(new InetSocketAddress(port));
+        return this;
+    }
+    
+    /**
+     * Adds the IPv6 wildcard address of given port to serve IPv4 and IPv6 clients with a single dual-stack socket.
+     * 
+     * <p>
+     * IPv4 clients arrive as IPv4-mapped IPv6 addresses; they are normalized to IPv4 addresses for session keys, listeners and encoded system addresses.
+     * Requires a host with IPv6 support. IPv4 destination addresses are learned like on {@link #addWildcardInterface(int)}, IPv6 sessions share the
+     * wildcard address as local address.
+     * </p>
+     * 
+     * @param port
+     *            ip port to be used
+     * @return this builder
+     */
+    public RaknetServerBuilder addDualStackInterface(int port)
+    {
+        this.interfaces.add(new InetSocketAddress(IPV6_ANY, port));
+        return this;
+    }
+    
+    /**
+     * Adds all addresses fetched from local interfaces; binds one socket per address. See {@link #addWildcardInterface(int)} for a single socket.
      * 
      * @param port
      *            ip port to be used
@@ -237,7 +607,7 @@ public class RaknetServerBuilder
      *            sender thread group
      * @return this builder.
      */
-    public RaknetServerBuilder setSenderGroup(NioEventLoopGroup group)
+    public RaknetServerBuilder setSenderGroup(EventLoopGroup group)
     {
         this.senderGroup = group;
         return this;
@@ -247,19 +617,158 @@ public class RaknetServerBuilder
      * Sets the network receiver group to be used.
      * 
      * <p>
-     * The receiver group is responsible for receiving and parsing network traffic from clients.
+     * The receiver group is responsible for receiving and parsing network traffic from clients. It must match the transport, for example an
+     * {@link io.netty.channel.epoll.EpollEventLoopGroup} for {@link RaknetTransport#EPOLL}. With {@link RaknetTransport#AUTO} the transport follows the
+     * given group.
      * </p>
      * 
      * @param group
      *            receiver thread group
      * @return this builder.
      */
-    public RaknetServerBuilder setReceiverGroup(NioEventLoopGroup group)
+    public RaknetServerBuilder setReceiverGroup(EventLoopGroup group)
     {
         this.receiverGroup = group;
         return this;
     }
     
+    /**
+     * Sets the number of sockets bound to each interface.
+     * 
+     * <p>
+     * Values other than 1 bind the sockets with SO_REUSEPORT, each on its own receiver event loop, and let the kernel distribute the clients among them. Each
+     * session stays on the socket it was created on. Requires a transport supporting SO_REUSEPORT ({@link RaknetTransport#EPOLL} or {@link RaknetTransport#IO_URING}).
+     * </p>
+     * 
+     * @param sockets
+     *            number of sockets per interface; 0 to bind one socket per receiver event loop; defaults to 1
+     * @return this builder.
+     * @throws IllegalArgumentException
+     *             thrown for negative values
+     */
+    public RaknetServerBuilder setSocketsPerInterface(int sockets)
+    {
+        if (sockets < 0)
+        {
+            throw new IllegalArgumentException("sockets"); //$NON-NLS-1$
+        }
+        this.socketsPerInterface = sockets;
+        return this;
+    }
+    
+    /**
+     * Sets the number of datagrams read or written with a single system call (recvmmsg/sendmmsg).
+     * 
+     * <p>
+     * Datagrams of a batch are passed through the pipeline one by one, followed by a single read complete; batch message handlers receive all messages of a
+     * batch at once. Requires a transport supporting batched io ({@link RaknetTransport#EPOLL} or {@link RaknetTransport#IO_URING}).
+     * </p>
+     * 
+     * @param receive
+     *            maximum number of datagrams per read; 1 disables batched reads; defaults to 1
+     * @param send
+     *            maximum number of datagrams per write; 0 for the transport default; defaults to 0
+     * @return this builder.
+     * @throws IllegalArgumentException
+     *             thrown if the batch sizes are out of range
+     */
+    public RaknetServerBuilder setBatchSizes(int receive, int send)
+    {
+        if (receive < 1 || receive > MAX_BATCH_SIZE)
+        {
+            throw new IllegalArgumentException("receive must be between 1 and " + MAX_BATCH_SIZE); //$NON-NLS-1$
+        }
+        if (send < 0 || send > MAX_BATCH_SIZE)
+        {
+            throw new IllegalArgumentException("send must be between 0 and " + MAX_BATCH_SIZE); //$NON-NLS-1$
+        }
+        this.receiveBatchSize = receive;
+        this.sendBatchSize = send;
+        return this;
+    }
+    
+    /**
+     * Enables UDP segmentation offload (GSO) for outgoing datagrams.
+     * 
+     * <p>
+     * Consecutive datagrams of equal size to the same recipient are passed to the kernel with a single segmented send. Transports or kernels without
+     * segmentation offload silently send single datagrams; the same applies after a segmented send was rejected by the network device.
+     * </p>
+     * 
+     * @param enabled
+     *            {@code true} to enable segmentation offload; defaults to {@code false}
+     * @return this builder.
+     */
+    public RaknetServerBuilder setSegmentationOffload(boolean enabled)
+    {
+        this.segmentationOffload = enabled;
+        return this;
+    }
+    
+    /**
+     * Sets the write buffer watermarks of the channels and sessions.
+     * 
+     * <p>
+     * A channel or session becomes unwritable once more bytes than the high watermark are waiting to be written and writable again once the pending bytes
+     * dropped below the low watermark. See {@link RaknetSession#isWritable()}.
+     * </p>
+     * 
+     * @param low
+     *            the low watermark in bytes; defaults to 32k
+     * @param high
+     *            the high watermark in bytes; defaults to 64k
+     * @return this builder.
+     * @throws IllegalArgumentException
+     *             thrown if the low watermark is negative or above the high watermark
+     */
+    public RaknetServerBuilder setWriteBufferWaterMarks(int low, int high)
+    {
+        if (low < 0 || high < low)
+        {
+            throw new IllegalArgumentException("expected 0 <= low <= high"); //$NON-NLS-1$
+        }
+        this.writeBufferLow = low;
+        this.writeBufferHigh = high;
+        return this;
+    }
+    
+    /**
+     * Sets the maximum size of incoming datagrams.
+     * 
+     * <p>
+     * Receive buffers are taken from the pooled direct allocator and sized to hold a single datagram of this size, or one batch of them for batched reads.
+     * Larger datagrams are truncated by the kernel; they are dropped and counted in {@link RaknetServer#getOversizeDatagrams()}.
+     * </p>
+     * 
+     * @param size
+     *            the maximum datagram size; defaults to {@link RaknetMessage#MAXIMUM_MTU_SIZE}
+     * @return this builder.
+     * @throws IllegalArgumentException
+     *             thrown if the size is below the raknet minimum mtu or above the maximum udp payload
+     */
+    public RaknetServerBuilder setMaxDatagramSize(int size)
+    {
+        if (size < MIN_DATAGRAM_SIZE || size > MAX_DATAGRAM_SIZE)
+        {
+            throw new IllegalArgumentException("size must be between " + MIN_DATAGRAM_SIZE + " and " + MAX_DATAGRAM_SIZE); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.maxDatagramSize = size;
+        return this;
+    }
+    
+    /**
+     * Sets the network transport to be used; defaults to {@link RaknetTransport#AUTO}.
+     * 
+     * @param transport
+     *            network transport
+     * @return this builder.
+     */
+    public RaknetServerBuilder setTransport(RaknetTransport transport)
+    {
+        this.transport = transport;
+        return this;
+    }
+    
     /**
      * Sets the SO_RCVBUF and SO_SNDBUF.
      * 
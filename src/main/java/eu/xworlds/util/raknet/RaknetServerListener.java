@@ -17,6 +17,8 @@
  */
 package eu.xworlds.util.raknet;
 
+import java.net.InetSocketAddress;
+
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
@@ -59,7 +61,7 @@ public interface RaknetServerListener
     boolean isBlocked(ChannelHandlerContext ctx, DatagramPacket msg);
 
     /**
-     * Invoked once a session was removed due to inactivity.
+     * Invoked once a session was removed due to inactivity; runs on the event loop owning the session.
      * @param value the session that was removed.
      */
     void onRemoval(RaknetSession value);
@@ -71,4 +73,14 @@ public interface RaknetServerListener
      */
     boolean onNewSession(RaknetSession session);
     
+    /**
+     * Invoked once a session migrated to a new remote address because its client guid reconnected from there.
+     * @param session the session that migrated; already reports the new addresses.
+     * @param previous the previous remote address.
+     */
+    default void onMigration(RaknetSession session, InetSocketAddress previous)
+    {
+        // empty
+    }
+    
 }
@@ -18,8 +18,17 @@
 package eu.xworlds.util.raknet;
 
 import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import eu.xworlds.util.raknet.protocol.SystemAddress;
 
 /**
+ * A raknet session.
+ * 
+ * <p>
+ * Each session is owned by a single event loop, the loop of the channel it was received on. The protocol state of the session is only changed by that loop,
+ * so it needs no locking. Code running on other threads, for example game logic or plugins, hands over work with {@link #execute(Runnable)}. Sending
+ * messages is safe from any thread.
+ * </p>
+ * 
  * @author mepeisen
  *
  */
@@ -28,9 +37,50 @@ public interface RaknetSession
 
     /**
      * Sends given message to client.
+     * 
+     * <p>
+     * The session takes over the reference of reference counted messages and releases them once they are written.
+     * </p>
+     * 
      * @param msg message
      */
     void send(RaknetMessage msg);
+    
+    /**
+     * Runs given task on the event loop owning this session.
+     * 
+     * <p>
+     * The task runs immediately if invoked by the owning loop. Otherwise it is enqueued without locking and runs with the next drain of the loop; tasks of
+     * the same thread run in order.
+     * </p>
+     * 
+     * @param task the task
+     */
+    void execute(Runnable task);
+    
+    /**
+     * Checks if the caller is the event loop owning this session.
+     * @return {@code true} if invoked by the owning event loop
+     */
+    boolean inEventLoop();
+    
+    /**
+     * Checks if the session accepts more messages without backing up the socket.
+     * 
+     * <p>
+     * A session becomes unwritable once its pending bytes exceed the high write buffer watermark or the channel itself is unwritable, and writable again
+     * once its pending bytes dropped below the low watermark. Game code should defer non-critical updates while the session is not writable.
+     * </p>
+     * 
+     * @return {@code true} if the session is writable
+     */
+    boolean isWritable();
+    
+    /**
+     * Returns the number of bytes sent by this session but not yet written to the socket.
+     * @return pending bytes
+     */
+    long getPendingBytes();
 
     /**
      * Returns the ping support for raknet sessions.
@@ -40,14 +90,49 @@ public interface RaknetSession
     
     /**
      * Returns current connection state
+     * 
+     * <p>
+     * Sessions start {@link ConnectionState#IS_CONNECTING} and become {@link ConnectionState#IS_CONNECTED} once the client completed its connection request.
+     * Sessions removed due to inactivity are {@link ConnectionState#IS_DISCONNECTED}.
+     * </p>
+     * 
      * @return connection state.
      */
     ConnectionState getConnectionState();
     
     /**
      * Returns the current connect mode
+     * 
+     * <p>
+     * {@link ConnectMode#UNVERIFIED_SENDER} till the connection request, {@link ConnectMode#HANDLING_CONNECTION_REQUEST} till the next message of the client
+     * and {@link ConnectMode#CONNECTED} afterwards.
+     * </p>
+     * 
      * @return connect mode.
      */
     ConnectMode getConnectMode();
     
+    /**
+     * Returns the guid the client announced during the connection handshake.
+     * @return client guid or 0 if the client did not yet announce its guid
+     */
+    long getGuid();
+    
+    /**
+     * Returns the address of the remote system; the encoded form is computed once per session and address.
+     * 
+     * <p>
+     * The address changes if the session migrates to another address of the same client, for example after a NAT rebinding.
+     * </p>
+     * 
+     * @return remote system address.
+     */
+    SystemAddress getRemoteAddress();
+    
+    /**
+     * Returns the local address the remote system sent its messages to; the encoded form is computed once per session.
+     * @return local system address.
+     */
+    SystemAddress getLocalAddress();
+    
 }
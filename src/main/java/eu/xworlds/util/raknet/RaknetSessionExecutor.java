@@ -0,0 +1,148 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * The session tasks of a single event loop.
+ * 
+ * <p>
+ * Each session is owned by the event loop of its channel and its protocol state is only touched by that loop. Other threads hand over their work through a
+ * lock free multi producer single consumer queue that is drained with a single event loop task, so a burst of calls from game logic costs one wakeup of the
+ * loop.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+class RaknetSessionExecutor implements Runnable
+{
+    
+    /** the logger */
+    private static final Logger   LOGGER    = Logger.getLogger(RaknetSessionExecutor.class.getName());
+    
+    /** the owning event loop */
+    private final EventLoop       loop;
+    
+    /** the pending tasks */
+    private final Queue<Runnable> queue     = PlatformDependent.newMpscQueue();
+    
+    /** true if a drain is scheduled on the event loop */
+    private final AtomicBoolean   scheduled = new AtomicBoolean();
+    
+    /** the timers of the sessions owned by the event loop */
+    private final RaknetTimerWheel timers;
+    
+    /**
+     * Constructor.
+     * 
+     * @param loop
+     *            the owning event loop
+     */
+    RaknetSessionExecutor(EventLoop loop)
+    {
+        this.loop = loop;
+        this.timers = new RaknetTimerWheel(loop);
+    }
+    
+    /**
+     * Returns the owning event loop.
+     * 
+     * @return owning event loop
+     */
+    EventLoop getLoop()
+    {
+        return this.loop;
+    }
+    
+    /**
+     * Returns the timing wheel of the owning event loop; must only be used by the owning loop.
+     * 
+     * @return timing wheel
+     */
+    RaknetTimerWheel getTimers()
+    {
+        return this.timers;
+    }
+    
+    /**
+     * Checks if the caller is the owning event loop.
+     * 
+     * @return {@code true} if invoked by the owning event loop
+     */
+    boolean inEventLoop()
+    {
+        return this.loop.inEventLoop();
+    }
+    
+    /**
+     * Runs a task on the owning event loop; the task runs immediately if invoked by the owning loop and is enqueued otherwise.
+     * 
+     * @param task
+     *            the task
+     */
+    void execute(Runnable task)
+    {
+        if (this.loop.inEventLoop())
+        {
+            runTask(task);
+            return;
+        }
+        this.queue.offer(task);
+        if (this.scheduled.compareAndSet(false, true))
+        {
+            this.loop.execute(this);
+        }
+    }
+    
+    @Override
+    public void run()
+    {
+        this.scheduled.set(false);
+        Runnable task;
+        while ((task = this.queue.poll()) != null)
+        {
+            runTask(task);
+        }
+    }
+    
+    /**
+     * Runs a single task; failures do not affect other sessions.
+     * 
+     * @param task
+     *            the task
+     */
+    private static void runTask(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException ex)
+        {
+            LOGGER.log(Level.WARNING, "Failed running session task " + task, ex); //$NON-NLS-1$
+        }
+    }
+    
+}
@@ -17,42 +17,390 @@
  */
 package eu.xworlds.util.raknet;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import eu.xworlds.util.raknet.protocol.ConnectedPing;
 import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import eu.xworlds.util.raknet.protocol.SystemAddress;
+import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
 
 /**
+ * The raknet session implementation.
+ * 
+ * <p>
+ * Protocol state is owned by the event loop of the session executor and must only be changed by that loop. The sender loop only reads the volatile
+ * addressing of the session, which changes if the session migrates, and updates the pending bytes atomically. A session migrating to a channel of another
+ * event loop moves to the executor of that loop; tasks queued on the previous executor follow it.
+ * </p>
+ * 
  * @author mepeisen
  *
  */
 class RaknetSessionImpl implements RaknetSession
 {
+    
+    /** the updater for the pending bytes and the writability */
+    private static final AtomicLongFieldUpdater<RaknetSessionImpl> WRITE_UPDATER = AtomicLongFieldUpdater.newUpdater(RaknetSessionImpl.class, "writeState"); //$NON-NLS-1$
+    
+    /** the write state bit set while the session is not writable */
+    private static final long UNWRITABLE = 1;
+    
+    /** the connection key; changes if the session migrates to another address */
+    private volatile InetSocketCon key;
+    
+    /** the remote system address */
+    private volatile SystemAddress remoteAddress;
+    
+    /** the local system address */
+    private volatile SystemAddress localAddress;
+    
+    /** the channel this session is bound to */
+    private volatile Channel channel;
+    
+    /** the client guid; 0 if not yet known */
+    private volatile long guid;
+    
+    /** the outbound path of the sender loop this session is bound to */
+    private final RaknetSender sender;
+    
+    /** the tasks of the event loop owning this session; changes if the session migrates to a channel of another event loop */
+    private volatile RaknetSessionExecutor executor;
+    
+    /**
+     * the bytes sent but not yet written to the socket, shifted left by one, and {@link #UNWRITABLE} if the pending bytes exceeded the high watermark and did
+     * not yet drop below the low watermark; one value, so count and writability never disagree
+     */
+    private volatile long writeState;
+    
+    /** the inactivity timeout in nano seconds */
+    private final long timeout;
+    
+    /** invoked on the owning event loop once the inactivity timeout expired */
+    private final Consumer<RaknetSessionImpl> onTimeout;
+    
+    /** the inactivity timer */
+    private final Inactivity inactivity = new Inactivity();
+    
+    /** the raknet time of the server in milliseconds */
+    private final LongSupplier clock;
+    
+    /** the pings of this session */
+    private final Pings pings = new Pings();
+    
+    /** the connection state */
+    private volatile ConnectionState connectionState = ConnectionState.IS_CONNECTING;
+    
+    /** the connect mode */
+    private volatile ConnectMode connectMode = ConnectMode.UNVERIFIED_SENDER;
 
-    public RaknetSessionImpl(InetSocketCon key)
+    /**
+     * Constructor
+     * @param key the connection key
+     * @param channel the channel this session is bound to; {@code null} if unknown
+     * @param sender the outbound path of the sender loop this session is bound to
+     * @param executor the tasks of the event loop owning this session
+     * @param timeout the inactivity timeout in nano seconds
+     * @param onTimeout invoked on the owning event loop once the inactivity timeout expired
+     * @param clock the raknet time of the server in milliseconds
+     */
+    public RaknetSessionImpl(InetSocketCon key, Channel channel, RaknetSender sender, RaknetSessionExecutor executor, long timeout,
+            Consumer<RaknetSessionImpl> onTimeout, LongSupplier clock)
+    {
+        this.key = key;
+        this.channel = channel;
+        this.sender = sender;
+        this.executor = executor;
+        this.timeout = timeout;
+        this.onTimeout = onTimeout;
+        this.clock = clock;
+        this.remoteAddress = SystemAddress.of(key.getFrom());
+        this.localAddress = SystemAddress.of(key.getTo());
+    }
+    
+    /**
+     * Returns the connection key
+     * @return connection key
+     */
+    InetSocketCon getKey()
+    {
+        return this.key;
+    }
+    
+    /**
+     * Restarts the inactivity timeout; hands over to the owning event loop if invoked by another thread.
+     */
+    void touch()
+    {
+        if (this.executor.inEventLoop())
+        {
+            this.executor.getTimers().schedule(this.inactivity, this.timeout);
+        }
+        else
+        {
+            this.executor.execute(this::touch);
+        }
+    }
+    
+    /**
+     * Cancels the timers of this session once it was removed; must be invoked by the owning event loop.
+     */
+    void cancelTimers()
     {
-        // TODO
-        throw new UnsupportedOperationException("new");
+        this.executor.getTimers().cancel(this.inactivity);
+    }
+    
+    /**
+     * Moves this session to the executor of another event loop; must be invoked by the owning event loop. The inactivity timer is cancelled and must be
+     * restarted by the new owner.
+     * 
+     * @param newExecutor
+     *            the tasks of the new owning event loop
+     */
+    void rehome(RaknetSessionExecutor newExecutor)
+    {
+        this.executor.getTimers().cancel(this.inactivity);
+        this.executor = newExecutor;
+    }
+    
+    /**
+     * Moves this session to another connection; invoked by the session table while the session is not reachable by its old key.
+     * @param newKey the new connection key
+     * @param newChannel the channel of the new connection; {@code null} to keep the current channel
+     */
+    void migrate(InetSocketCon newKey, Channel newChannel)
+    {
+        this.remoteAddress = SystemAddress.of(newKey.getFrom());
+        this.localAddress = SystemAddress.of(newKey.getTo());
+        if (newChannel != null)
+        {
+            this.channel = newChannel;
+        }
+        this.key = newKey;
+    }
+    
+    /**
+     * Sets the client guid
+     * @param guid client guid
+     */
+    void setGuid(long guid)
+    {
+        this.guid = guid;
+    }
+    
+    @Override
+    public long getGuid()
+    {
+        return this.guid;
+    }
+    
+    /**
+     * Returns the channel this session is bound to
+     * @return channel or {@code null} if unknown
+     */
+    Channel getChannel()
+    {
+        return this.channel;
     }
 
     @Override
-    public void send(RaknetMessage msg) {
-        // TODO
-        throw new UnsupportedOperationException("send");
+    public void execute(Runnable task)
+    {
+        final RaknetSessionExecutor current = this.executor;
+        current.execute(() -> {
+            if (this.executor == current)
+            {
+                task.run();
+            }
+            else
+            {
+                // the session moved while the task was queued
+                this.execute(task);
+            }
+        });
+    }
+    
+    @Override
+    public boolean inEventLoop()
+    {
+        return this.executor.inEventLoop();
     }
 
     @Override
-    public RaknetSessionPings getPings() {
-        // TODO
-        throw new UnsupportedOperationException("getPings");
+    public void send(RaknetMessage msg)
+    {
+        if (this.channel == null)
+        {
+            ReferenceCountUtil.release(msg);
+            throw new IllegalStateException("Session is not bound to a channel"); //$NON-NLS-1$
+        }
+        final int size = msg.encodedSize();
+        this.addPendingBytes(size);
+        this.sender.send(this, msg, size);
+    }
+    
+    /**
+     * Adds to the pending bytes and updates the writability
+     * @param delta the bytes to add; negative for written bytes
+     */
+    void addPendingBytes(long delta)
+    {
+        final int high = this.channel.config().getWriteBufferHighWaterMark();
+        final int low = this.channel.config().getWriteBufferLowWaterMark();
+        long current;
+        long next;
+        do
+        {
+            current = this.writeState;
+            final long pending = (current >> 1) + delta;
+            long unwritable = current & UNWRITABLE;
+            if (pending > high)
+            {
+                unwritable = UNWRITABLE;
+            }
+            else if (pending < low)
+            {
+                unwritable = 0;
+            }
+            next = pending << 1 | unwritable;
+        }
+        while (!WRITE_UPDATER.compareAndSet(this, current, next));
     }
 
     @Override
-    public ConnectionState getConnectionState() {
-        // TODO
-        throw new UnsupportedOperationException("getConnectionState");
+    public boolean isWritable()
+    {
+        return (this.writeState & UNWRITABLE) == 0 && this.channel != null && this.channel.isWritable();
     }
 
     @Override
-    public ConnectMode getConnectMode() {
-        // TODO
-        throw new UnsupportedOperationException("getConnectMode");
+    public long getPendingBytes()
+    {
+        return this.writeState >> 1;
+    }
+
+    @Override
+    public RaknetSessionPings getPings()
+    {
+        return this.pings;
+    }
+
+    @Override
+    public ConnectionState getConnectionState()
+    {
+        return this.connectionState;
+    }
+
+    @Override
+    public ConnectMode getConnectMode()
+    {
+        return this.connectMode;
+    }
+    
+    /**
+     * Moves the session to another connection state
+     * @param state the connection state
+     * @param mode the connect mode
+     */
+    void setConnectionState(ConnectionState state, ConnectMode mode)
+    {
+        this.connectionState = state;
+        this.connectMode = mode;
+    }
+
+    @Override
+    public SystemAddress getRemoteAddress()
+    {
+        return this.remoteAddress;
+    }
+
+    @Override
+    public SystemAddress getLocalAddress()
+    {
+        return this.localAddress;
+    }
+    
+    /**
+     * The inactivity timer of the session.
+     */
+    private final class Inactivity extends RaknetTimerWheel.Timer
+    {
+        
+        /**
+         * Constructor.
+         */
+        Inactivity()
+        {
+            // empty
+        }
+        
+        @Override
+        protected void expire()
+        {
+            RaknetSessionImpl.this.onTimeout.accept(RaknetSessionImpl.this);
+        }
+        
+    }
+    
+    /**
+     * The pings of a session; answers are registered by the owning event loop.
+     */
+    private final class Pings implements RaknetSessionPings
+    {
+        
+        /** the round trip time of the last answered ping in milliseconds; -1 if none */
+        private volatile long last   = -1;
+        
+        /** the lowest round trip time in milliseconds; -1 if none */
+        private volatile long lowest = -1;
+        
+        /**
+         * Constructor.
+         */
+        Pings()
+        {
+            // empty
+        }
+        
+        @Override
+        public void ping(long pingTime)
+        {
+            final InetSocketCon con = RaknetSessionImpl.this.key;
+            final ConnectedPing ping = ConnectedPing.newInstance(con.getTo(), con.getFrom());
+            ping.setTime(pingTime);
+            RaknetSessionImpl.this.send(ping);
+        }
+        
+        @Override
+        public void registerAnswer(long pingTime, long pongTime)
+        {
+            final long roundTrip = RaknetSessionImpl.this.clock.getAsLong() - pingTime;
+            if (roundTrip < 0)
+            {
+                // not a ping of this server
+                return;
+            }
+            this.last = roundTrip;
+            if (this.lowest < 0 || roundTrip < this.lowest)
+            {
+                this.lowest = roundTrip;
+            }
+        }
+        
+        @Override
+        public long getLastPing()
+        {
+            return this.last;
+        }
+        
+        @Override
+        public long getLowestPing()
+        {
+            return this.lowest;
+        }
+        
     }
+    
 }
@@ -38,6 +38,16 @@ public interface RaknetSessionPings
      */
     void registerAnswer(long pingTime, long pongTime);
     
+    /**
+     * Returns the round trip time of the last answered ping.
+     * @return round trip time in milliseconds; -1 if no ping was answered yet
+     */
+    long getLastPing();
     
+    /**
+     * Returns the lowest round trip time of all answered pings.
+     * @return round trip time in milliseconds; -1 if no ping was answered yet
+     */
+    long getLowestPing();
     
 }
@@ -0,0 +1,530 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+import io.netty.channel.Channel;
+
+/**
+ * The table of established raknet sessions.
+ * 
+ * <p>
+ * Sessions are keyed by a packed primitive form of the remote and local address (address and port of each side in a long) and stored in sharded open
+ * addressing tables with linear probing. Lookups are optimistic reads without locking and without allocation; inserts and removals lock a single shard. IPv4
+ * addresses are packed exactly; IPv6 addresses are packed by their hash code and verified against the session key on a match.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+class RaknetSessionTable
+{
+    
+    /** the number of shards; a power of two */
+    private static final int     SHARDS          = 16;
+    
+    /** the shift selecting the shard from the upper hash bits */
+    private static final int     SHARD_SHIFT     = Long.SIZE - Integer.numberOfTrailingZeros(SHARDS);
+    
+    /** the initial number of slots per shard; a power of two */
+    private static final int     INITIAL_SLOTS   = 64;
+    
+    /** the shards */
+    private final Shard[]        shards          = new Shard[SHARDS];
+    
+    /** the maximum number of sessions */
+    private final int            capacity;
+    
+    /** the number of sessions */
+    private final AtomicInteger  size            = new AtomicInteger();
+    
+    /** the number of sessions rejected because the table was full */
+    private final LongAdder      rejected;
+    
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            the maximum number of sessions
+     * @param rejected
+     *            counter for sessions rejected because the table was full
+     */
+    RaknetSessionTable(int capacity, LongAdder rejected)
+    {
+        this.capacity = capacity;
+        this.rejected = rejected;
+        for (int i = 0; i < SHARDS; i++)
+        {
+            this.shards[i] = new Shard();
+        }
+    }
+    
+    /**
+     * Returns the maximum number of sessions.
+     * 
+     * @return maximum number of sessions
+     */
+    int getCapacity()
+    {
+        return this.capacity;
+    }
+    
+    /**
+     * Returns the number of sessions.
+     * 
+     * @return number of sessions
+     */
+    int size()
+    {
+        return this.size.get();
+    }
+    
+    /**
+     * Packs an address and port into a long; the address occupies the upper bits.
+     * 
+     * @param address
+     *            socket address
+     * @return packed address
+     */
+    static long pack(InetSocketAddress address)
+    {
+        final InetAddress ip = address.getAddress();
+        // the hash code of an IPv4 address is the address itself
+        final int bits = ip == null ? address.getHostString().hashCode() : ip.hashCode();
+        return ((bits & 0xFFFFFFFFL) << 16) | address.getPort();
+    }
+    
+    /**
+     * Checks if the packed form of an address identifies it unambiguously.
+     * 
+     * @param address
+     *            socket address
+     * @return {@code true} for IPv4 addresses
+     */
+    static boolean isExact(InetSocketAddress address)
+    {
+        return address.getAddress() instanceof Inet4Address;
+    }
+    
+    /**
+     * Spreads the packed key over 64 bits (murmur3 finalizer).
+     * 
+     * @param remote
+     *            packed remote address
+     * @param local
+     *            packed local address
+     * @return hash
+     */
+    static long hash(long remote, long local)
+    {
+        long h = remote * 0x9E3779B97F4A7C15L ^ local;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Returns the session for given connection.
+     * 
+     * @param remote
+     *            remote address
+     * @param local
+     *            local address
+     * @return session or {@code null} if there is no such session
+     */
+    RaknetSessionImpl get(InetSocketAddress remote, InetSocketAddress local)
+    {
+        final long r = pack(remote);
+        final long l = pack(local);
+        final long hash = hash(r, l);
+        final Shard shard = this.shards[(int) (hash >>> SHARD_SHIFT)];
+        long stamp = shard.tryOptimisticRead();
+        RaknetSessionImpl result = shard.find(r, l, hash, remote, local);
+        if (!shard.validate(stamp))
+        {
+            stamp = shard.readLock();
+            try
+            {
+                result = shard.find(r, l, hash, remote, local);
+            }
+            finally
+            {
+                shard.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the session for given connection; creates it if there is no such session.
+     * 
+     * <p>
+     * The factory is invoked while the shard is locked, so concurrent callers for the same connection receive the same session.
+     * </p>
+     * 
+     * @param remote
+     *            remote address
+     * @param local
+     *            local address
+     * @param factory
+     *            the factory creating the session; may return {@code null} to reject the connection
+     * @return session or {@code null} if the factory rejected the connection or the table is full
+     */
+    RaknetSessionImpl getOrCreate(InetSocketAddress remote, InetSocketAddress local, Function<InetSocketCon, RaknetSessionImpl> factory)
+    {
+        final long r = pack(remote);
+        final long l = pack(local);
+        final long hash = hash(r, l);
+        final Shard shard = this.shards[(int) (hash >>> SHARD_SHIFT)];
+        final long stamp = shard.writeLock();
+        try
+        {
+            final RaknetSessionImpl existing = shard.find(r, l, hash, remote, local);
+            if (existing != null)
+            {
+                return existing;
+            }
+            if (this.size.incrementAndGet() > this.capacity)
+            {
+                this.size.decrementAndGet();
+                this.rejected.increment();
+                return null;
+            }
+            final RaknetSessionImpl session = factory.apply(new InetSocketCon(remote, local));
+            if (session == null)
+            {
+                this.size.decrementAndGet();
+                return null;
+            }
+            shard.insert(r, l, hash, session);
+            return session;
+        }
+        finally
+        {
+            shard.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Removes a session.
+     * 
+     * @param session
+     *            the session to remove
+     * @return {@code true} if the session was removed; {@code false} if it was not part of this table
+     */
+    boolean remove(RaknetSessionImpl session)
+    {
+        final InetSocketAddress remote = session.getKey().getFrom();
+        final InetSocketAddress local = session.getKey().getTo();
+        final long r = pack(remote);
+        final long l = pack(local);
+        final long hash = hash(r, l);
+        final Shard shard = this.shards[(int) (hash >>> SHARD_SHIFT)];
+        final long stamp = shard.writeLock();
+        try
+        {
+            if (shard.remove(r, l, hash, session))
+            {
+                this.size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+        finally
+        {
+            shard.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Moves a session to another connection key.
+     * 
+     * <p>
+     * Both shards are locked in shard order, so the session is never reachable by both keys and never lost in between.
+     * </p>
+     * 
+     * @param session
+     *            the session to move
+     * @param key
+     *            the new connection key
+     * @param channel
+     *            the channel of the new connection; {@code null} to keep the current channel
+     * @return {@code true} if the session was moved; {@code false} if it was not part of this table or there is already a session for the new key
+     */
+    boolean migrate(RaknetSessionImpl session, InetSocketCon key, Channel channel)
+    {
+        final InetSocketCon oldKey = session.getKey();
+        final long oldR = pack(oldKey.getFrom());
+        final long oldL = pack(oldKey.getTo());
+        final long oldHash = hash(oldR, oldL);
+        final long r = pack(key.getFrom());
+        final long l = pack(key.getTo());
+        final long hash = hash(r, l);
+        final int oldIndex = (int) (oldHash >>> SHARD_SHIFT);
+        final int index = (int) (hash >>> SHARD_SHIFT);
+        final Shard first = this.shards[Math.min(oldIndex, index)];
+        final Shard second = this.shards[Math.max(oldIndex, index)];
+        final long firstStamp = first.writeLock();
+        final long secondStamp = first == second ? 0 : second.writeLock();
+        try
+        {
+            final Shard target = this.shards[index];
+            if (target.find(r, l, hash, key.getFrom(), key.getTo()) != null || !this.shards[oldIndex].remove(oldR, oldL, oldHash, session))
+            {
+                return false;
+            }
+            session.migrate(key, channel);
+            target.insert(r, l, hash, session);
+            return true;
+        }
+        finally
+        {
+            if (first != second)
+            {
+                second.unlockWrite(secondStamp);
+            }
+            first.unlockWrite(firstStamp);
+        }
+    }
+    
+    /**
+     * The slot arrays of a shard; replaced as a whole when the shard grows.
+     */
+    private static final class Slots
+    {
+        
+        /** the packed remote addresses */
+        final long[]              remote;
+        
+        /** the packed local addresses */
+        final long[]              local;
+        
+        /** the sessions; {@code null} for free slots */
+        final RaknetSessionImpl[] sessions;
+        
+        /** the mask selecting a slot from a hash */
+        final int                 mask;
+        
+        /**
+         * Constructor.
+         * 
+         * @param length
+         *            the number of slots; a power of two
+         */
+        Slots(int length)
+        {
+            this.remote = new long[length];
+            this.local = new long[length];
+            this.sessions = new RaknetSessionImpl[length];
+            this.mask = length - 1;
+        }
+    
+    }
+    
+    /**
+     * A single shard; an open addressing table with linear probing guarded by its stamped lock.
+     */
+    private static final class Shard extends StampedLock
+    {
+        
+        /** serial version uid */
+        private static final long serialVersionUID = 1L;
+        
+        /** the slots */
+        Slots                     slots            = new Slots(INITIAL_SLOTS);
+        
+        /** the number of sessions in this shard */
+        int                       count;
+        
+        /**
+         * Constructor.
+         */
+        Shard()
+        {
+            // empty
+        }
+        
+        /**
+         * Finds a session; may be invoked within an optimistic read and returns garbage if the read is not valid.
+         * 
+         * @param r
+         *            packed remote address
+         * @param l
+         *            packed local address
+         * @param hash
+         *            hash of the packed addresses
+         * @param remote
+         *            remote address
+         * @param local
+         *            local address
+         * @return session or {@code null}
+         */
+        RaknetSessionImpl find(long r, long l, long hash, InetSocketAddress remote, InetSocketAddress local)
+        {
+            final Slots s = this.slots;
+            final boolean exact = isExact(remote) && isExact(local);
+            int index = (int) hash & s.mask;
+            // the probe limit only matters for inconsistent optimistic reads
+            for (int probes = 0; probes <= s.mask; probes++)
+            {
+                final RaknetSessionImpl session = s.sessions[index];
+                if (session == null)
+                {
+                    return null;
+                }
+                if (s.remote[index] == r && s.local[index] == l && (exact || matches(session, remote, local)))
+                {
+                    return session;
+                }
+                index = (index + 1) & s.mask;
+            }
+            return null;
+        }
+        
+        /**
+         * Compares the session key with given addresses.
+         * 
+         * @param session
+         *            session
+         * @param remote
+         *            remote address
+         * @param local
+         *            local address
+         * @return {@code true} if the session belongs to the addresses
+         */
+        private static boolean matches(RaknetSessionImpl session, InetSocketAddress remote, InetSocketAddress local)
+        {
+            final InetSocketCon key = session.getKey();
+            return key.getFrom().equals(remote) && key.getTo().equals(local);
+        }
+        
+        /**
+         * Inserts a session that is not yet part of this shard; requires the write lock.
+         * 
+         * @param r
+         *            packed remote address
+         * @param l
+         *            packed local address
+         * @param hash
+         *            hash of the packed addresses
+         * @param session
+         *            session
+         */
+        void insert(long r, long l, long hash, RaknetSessionImpl session)
+        {
+            // keep the load factor below one half for short probe sequences
+            if ((this.count + 1) * 2 > this.slots.sessions.length)
+            {
+                this.grow();
+            }
+            final Slots s = this.slots;
+            int index = (int) hash & s.mask;
+            while (s.sessions[index] != null)
+            {
+                index = (index + 1) & s.mask;
+            }
+            s.remote[index] = r;
+            s.local[index] = l;
+            s.sessions[index] = session;
+            this.count++;
+        }
+        
+        /**
+         * Doubles the number of slots; requires the write lock.
+         */
+        private void grow()
+        {
+            final Slots old = this.slots;
+            final Slots s = new Slots(old.sessions.length * 2);
+            for (int i = 0; i < old.sessions.length; i++)
+            {
+                if (old.sessions[i] != null)
+                {
+                    int index = (int) hash(old.remote[i], old.local[i]) & s.mask;
+                    while (s.sessions[index] != null)
+                    {
+                        index = (index + 1) & s.mask;
+                    }
+                    s.remote[index] = old.remote[i];
+                    s.local[index] = old.local[i];
+                    s.sessions[index] = old.sessions[i];
+                }
+            }
+            this.slots = s;
+        }
+        
+        /**
+         * Removes a session; requires the write lock.
+         * 
+         * @param r
+         *            packed remote address
+         * @param l
+         *            packed local address
+         * @param hash
+         *            hash of the packed addresses
+         * @param session
+         *            session
+         * @return {@code true} if the session was removed
+         */
+        boolean remove(long r, long l, long hash, RaknetSessionImpl session)
+        {
+            final Slots s = this.slots;
+            int index = (int) hash & s.mask;
+            while (s.sessions[index] != session)
+            {
+                if (s.sessions[index] == null)
+                {
+                    return false;
+                }
+                index = (index + 1) & s.mask;
+            }
+            // shift back following entries of the probe sequence instead of leaving tombstones
+            int free = index;
+            int next = (free + 1) & s.mask;
+            while (s.sessions[next] != null)
+            {
+                final int home = (int) hash(s.remote[next], s.local[next]) & s.mask;
+                // move the entry if its home slot is not within (free, next]
+                if (((next - home) & s.mask) >= ((next - free) & s.mask))
+                {
+                    s.remote[free] = s.remote[next];
+                    s.local[free] = s.local[next];
+                    s.sessions[free] = s.sessions[next];
+                    free = next;
+                }
+                next = (next + 1) & s.mask;
+            }
+            s.sessions[free] = null;
+            s.remote[free] = 0;
+            s.local[free] = 0;
+            this.count--;
+            return true;
+        }
+        
+    }
+    
+}
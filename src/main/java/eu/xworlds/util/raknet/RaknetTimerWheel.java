@@ -0,0 +1,307 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.channel.EventLoop;
+
+/**
+ * A hashed timing wheel of a single event loop.
+ * 
+ * <p>
+ * Timers are linked into one of {@value #WHEEL_SIZE} buckets by their deadline tick. Scheduling an already scheduled timer only moves its deadline; the timer
+ * is relinked once its old bucket comes up, so touching a session for each datagram costs a clock read and a field write. Each tick expires the due timers of its bucket
+ * as one batch. The wheel only ticks while timers are scheduled.
+ * </p>
+ * 
+ * <p>
+ * The wheel is not thread safe; it must only be used by its event loop. It serves session inactivity as well as handshake timeouts and resend timers.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+class RaknetTimerWheel implements Runnable
+{
+    
+    /** the tick duration in nano seconds */
+    static final long           TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    
+    /** the number of buckets; a power of two */
+    static final int            WHEEL_SIZE = 512;
+    
+    /** the mask selecting a bucket from a tick */
+    private static final int    MASK       = WHEEL_SIZE - 1;
+    
+    /** the logger */
+    private static final Logger LOGGER     = Logger.getLogger(RaknetTimerWheel.class.getName());
+    
+    /** the event loop */
+    private final EventLoop     loop;
+    
+    /** the first timer of each bucket */
+    private final Timer[]       buckets    = new Timer[WHEEL_SIZE];
+    
+    /** the due timers of the current tick */
+    private final List<Timer>   expired    = new ArrayList<>();
+    
+    /** the time the wheel was created at */
+    private final long          start      = System.nanoTime();
+    
+    /** the last processed tick */
+    private long                tick;
+    
+    /** the number of scheduled timers */
+    private int                 count;
+    
+    /** true if the next tick is scheduled on the event loop */
+    private boolean             running;
+    
+    /**
+     * Constructor.
+     * 
+     * @param loop
+     *            the event loop
+     */
+    RaknetTimerWheel(EventLoop loop)
+    {
+        this.loop = loop;
+    }
+    
+    /**
+     * Returns the number of scheduled timers.
+     * 
+     * @return number of scheduled timers
+     */
+    int size()
+    {
+        return this.count;
+    }
+    
+    /**
+     * Schedules a timer or moves the deadline of an already scheduled timer.
+     * 
+     * <p>
+     * Moving the deadline of a scheduled timer to a later tick does not touch the buckets.
+     * </p>
+     * 
+     * @param timer
+     *            the timer
+     * @param delay
+     *            the delay in nano seconds; the timer expires up to two ticks late
+     */
+    void schedule(Timer timer, long delay)
+    {
+        final long now = this.currentTick();
+        if (!this.running)
+        {
+            this.tick = now;
+        }
+        // one extra tick as the current tick already started
+        final long deadline = now + 1 + (delay + TICK_NANOS - 1) / TICK_NANOS;
+        if (timer.wheel == this)
+        {
+            final long previous = timer.deadline;
+            timer.deadline = deadline;
+            if (deadline < previous)
+            {
+                // earlier deadlines are not found by the lazy relinking
+                this.unlink(timer);
+                this.link(timer);
+            }
+        }
+        else
+        {
+            timer.deadline = deadline;
+            timer.wheel = this;
+            this.link(timer);
+            this.count++;
+            if (!this.running)
+            {
+                this.running = true;
+                this.loop.schedule(this, TICK_NANOS, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+    
+    /**
+     * Cancels a timer; does nothing if the timer is not scheduled.
+     * 
+     * @param timer
+     *            the timer
+     */
+    void cancel(Timer timer)
+    {
+        if (timer.wheel == this)
+        {
+            this.unlink(timer);
+            timer.wheel = null;
+            this.count--;
+        }
+    }
+    
+    /**
+     * Returns the current tick.
+     * 
+     * @return current tick
+     */
+    private long currentTick()
+    {
+        return (System.nanoTime() - this.start) / TICK_NANOS;
+    }
+    
+    @Override
+    public void run()
+    {
+        final long target = this.currentTick();
+        while (this.tick < target && this.count > 0)
+        {
+            this.tick++;
+            final int index = (int) this.tick & MASK;
+            Timer timer = this.buckets[index];
+            while (timer != null)
+            {
+                final Timer next = timer.next;
+                if (timer.deadline <= this.tick)
+                {
+                    this.unlink(timer);
+                    timer.wheel = null;
+                    this.count--;
+                    this.expired.add(timer);
+                }
+                else if (((int) timer.deadline & MASK) != timer.bucket)
+                {
+                    // the deadline was moved since the timer was linked
+                    this.unlink(timer);
+                    this.link(timer);
+                }
+                timer = next;
+            }
+        }
+        this.tick = Math.max(this.tick, target);
+        
+        for (final Timer timer : this.expired)
+        {
+            try
+            {
+                timer.expire();
+            }
+            catch (RuntimeException ex)
+            {
+                LOGGER.log(Level.WARNING, "Failed expiring timer " + timer, ex); //$NON-NLS-1$
+            }
+        }
+        this.expired.clear();
+        
+        if (this.count > 0 && !this.loop.isShuttingDown())
+        {
+            this.loop.schedule(this, TICK_NANOS, TimeUnit.NANOSECONDS);
+        }
+        else
+        {
+            this.running = false;
+        }
+    }
+    
+    /**
+     * Links a timer into the bucket of its deadline.
+     * 
+     * @param timer
+     *            the timer
+     */
+    private void link(Timer timer)
+    {
+        final int index = (int) timer.deadline & MASK;
+        final Timer head = this.buckets[index];
+        timer.bucket = index;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null)
+        {
+            head.prev = timer;
+        }
+        this.buckets[index] = timer;
+    }
+    
+    /**
+     * Unlinks a timer from its bucket.
+     * 
+     * @param timer
+     *            the timer
+     */
+    private void unlink(Timer timer)
+    {
+        if (timer.prev == null)
+        {
+            this.buckets[timer.bucket] = timer.next;
+        }
+        else
+        {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next != null)
+        {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+    }
+    
+    /**
+     * A timer of the wheel.
+     */
+    abstract static class Timer
+    {
+        
+        /** the wheel this timer is scheduled on; {@code null} if not scheduled */
+        RaknetTimerWheel wheel;
+        
+        /** the deadline tick */
+        long             deadline;
+        
+        /** the bucket this timer is linked into */
+        int              bucket;
+        
+        /** the previous timer of the bucket */
+        Timer            prev;
+        
+        /** the next timer of the bucket */
+        Timer            next;
+        
+        /**
+         * Checks if this timer is scheduled.
+         * 
+         * @return {@code true} if this timer is scheduled
+         */
+        boolean isScheduled()
+        {
+            return this.wheel != null;
+        }
+        
+        /**
+         * Invoked on the event loop once the deadline passed.
+         */
+        protected abstract void expire();
+    
+    }
+    
+}
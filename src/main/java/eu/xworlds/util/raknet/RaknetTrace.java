@@ -32,6 +32,15 @@ import io.netty.channel.SimpleChannelInboundHandler;
  */
 class RaknetTrace extends SimpleChannelInboundHandler<RaknetMessage>
 {
+    
+    /**
+     * Constructor.
+     */
+    public RaknetTrace()
+    {
+        // messages are passed to the next handler and must not be released here
+        super(false);
+    }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, RaknetMessage msg) throws Exception
@@ -0,0 +1,430 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringDatagramChannel;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * The network transport used by raknet servers.
+ * 
+ * @author mepeisen
+ */
+public enum RaknetTransport
+{
+    
+    /** java nio selector based transport; available on all platforms */
+    NIO
+    {
+        @Override
+        public boolean isAvailable()
+        {
+            return true;
+        }
+        
+        @Override
+        public Class<? extends DatagramChannel> getChannelClass()
+        {
+            return NioDatagramChannel.class;
+        }
+        
+        @Override
+        public EventLoopGroup newEventLoopGroup()
+        {
+            return new NioEventLoopGroup();
+        }
+        
+        @Override
+        public boolean isCompatible(EventLoopGroup group)
+        {
+            return group instanceof NioEventLoopGroup;
+        }
+    },
+    
+    /** native linux epoll transport */
+    EPOLL
+    {
+        @Override
+        public boolean isAvailable()
+        {
+            // the native transport allocates its buffers through unsafe
+            return Epoll.isAvailable() && PlatformDependent.hasUnsafe();
+        }
+        
+        @Override
+        public Class<? extends DatagramChannel> getChannelClass()
+        {
+            return EpollDatagramChannel.class;
+        }
+        
+        @Override
+        public EventLoopGroup newEventLoopGroup()
+        {
+            return new EpollEventLoopGroup();
+        }
+        
+        @Override
+        public boolean isCompatible(EventLoopGroup group)
+        {
+            return group instanceof EpollEventLoopGroup;
+        }
+        
+        @Override
+        public boolean supportsReusePort()
+        {
+            return true;
+        }
+        
+        @Override
+        public boolean supportsBatchedIo()
+        {
+            return true;
+        }
+        
+        @Override
+        public boolean supportsSegmentationOffload()
+        {
+            return EpollDatagramChannel.isSegmentedDatagramPacketSupported();
+        }
+        
+        @Override
+        ChannelOption<Integer> getDatagramPayloadOption()
+        {
+            return EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE;
+        }
+        
+        @Override
+        public boolean supportsDestinationAddress()
+        {
+            return true;
+        }
+    },
+    
+    /**
+     * native linux io_uring transport (incubator); read buffers are submitted to the kernel up front and completions are reaped in batches. Falls back to
+     * {@link #AUTO} if io_uring is not supported by the kernel.
+     */
+    IO_URING
+    {
+        @Override
+        public boolean isAvailable()
+        {
+            return IOUring.isAvailable();
+        }
+        
+        @Override
+        public Class<? extends DatagramChannel> getChannelClass()
+        {
+            return IOUringDatagramChannel.class;
+        }
+        
+        @Override
+        public EventLoopGroup newEventLoopGroup()
+        {
+            return new IOUringEventLoopGroup();
+        }
+        
+        @Override
+        public boolean isCompatible(EventLoopGroup group)
+        {
+            return group instanceof IOUringEventLoopGroup;
+        }
+        
+        @Override
+        public boolean supportsReusePort()
+        {
+            return true;
+        }
+        
+        @Override
+        public boolean supportsBatchedIo()
+        {
+            return true;
+        }
+        
+        @Override
+        ChannelOption<Integer> getDatagramPayloadOption()
+        {
+            return IOUringChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE;
+        }
+        
+        @Override
+        public boolean supportsDestinationAddress()
+        {
+            // the datagram channel rejects IP_RECVORIGDSTADDR as unknown option and reports the wildcard address as recipient
+            return false;
+        }
+        
+        @Override
+        public RaknetTransport resolve()
+        {
+            return this.isAvailable() ? this : AUTO.resolve();
+        }
+    },
+    
+    /** chooses {@link #EPOLL} if available and {@link #NIO} otherwise */
+    AUTO
+    {
+        @Override
+        public boolean isAvailable()
+        {
+            return true;
+        }
+        
+        @Override
+        public Class<? extends DatagramChannel> getChannelClass()
+        {
+            return this.resolve().getChannelClass();
+        }
+        
+        @Override
+        public EventLoopGroup newEventLoopGroup()
+        {
+            return this.resolve().newEventLoopGroup();
+        }
+        
+        @Override
+        public boolean isCompatible(EventLoopGroup group)
+        {
+            return this.resolve().isCompatible(group);
+        }
+        
+        @Override
+        public boolean supportsReusePort()
+        {
+            return this.resolve().supportsReusePort();
+        }
+        
+        @Override
+        public boolean supportsBatchedIo()
+        {
+            return this.resolve().supportsBatchedIo();
+        }
+        
+        @Override
+        public boolean supportsSegmentationOffload()
+        {
+            return this.resolve().supportsSegmentationOffload();
+        }
+        
+        @Override
+        public boolean supportsDestinationAddress()
+        {
+            return this.resolve().supportsDestinationAddress();
+        }
+        
+        @Override
+        public RaknetTransport resolve()
+        {
+            return EPOLL.isAvailable() ? EPOLL : NIO;
+        }
+    };
+    
+    /**
+     * Checks if this transport can be used on the current platform.
+     * 
+     * @return {@code true} if the transport is available
+     */
+    public abstract boolean isAvailable();
+    
+    /**
+     * Returns the datagram channel class.
+     * 
+     * @return channel class
+     */
+    public abstract Class<? extends DatagramChannel> getChannelClass();
+    
+    /**
+     * Creates a new event loop group with default number of threads.
+     * 
+     * @return event loop group
+     */
+    public abstract EventLoopGroup newEventLoopGroup();
+    
+    /**
+     * Checks if the channels of this transport can be registered to given group.
+     * 
+     * @param group
+     *            event loop group
+     * @return {@code true} if the group can be used
+     */
+    public abstract boolean isCompatible(EventLoopGroup group);
+    
+    /**
+     * Checks if multiple sockets can be bound to the same address with SO_REUSEPORT.
+     * 
+     * @return {@code true} if SO_REUSEPORT is supported
+     */
+    public boolean supportsReusePort()
+    {
+        return false;
+    }
+    
+    /**
+     * Applies SO_REUSEPORT to given bootstrap.
+     * 
+     * @param bootstrap
+     *            the bootstrap
+     * @throws IllegalStateException
+     *             thrown if SO_REUSEPORT is not supported
+     */
+    void setReusePort(Bootstrap bootstrap)
+    {
+        if (!this.supportsReusePort())
+        {
+            throw new IllegalStateException("SO_REUSEPORT is not supported by transport " + this); //$NON-NLS-1$
+        }
+        bootstrap.option(UnixChannelOption.SO_REUSEPORT, Boolean.TRUE);
+    }
+    
+    /**
+     * Checks if multiple datagrams can be read or written with a single system call (recvmmsg/sendmmsg).
+     * 
+     * @return {@code true} if batched datagram io is supported
+     */
+    public boolean supportsBatchedIo()
+    {
+        return false;
+    }
+    
+    /**
+     * Checks if consecutive datagrams to the same recipient can be sent with UDP segmentation offload (UDP_SEGMENT).
+     * 
+     * @return {@code true} if the transport and the kernel support segmentation offload
+     */
+    public boolean supportsSegmentationOffload()
+    {
+        return false;
+    }
+    
+    /**
+     * Checks if sockets bound to a wildcard address report the destination address of each datagram (IP_RECVORIGDSTADDR).
+     * 
+     * @return {@code true} if the destination address of wildcard sockets is supported
+     */
+    public boolean supportsDestinationAddress()
+    {
+        return false;
+    }
+    
+    /**
+     * Lets the channels report the destination address of each datagram as its recipient.
+     * 
+     * @param bootstrap
+     *            the bootstrap
+     * @throws IllegalStateException
+     *             thrown if destination addresses are not supported
+     */
+    void setDestinationAddress(Bootstrap bootstrap)
+    {
+        if (!this.supportsDestinationAddress())
+        {
+            throw new IllegalStateException("Destination addresses are not supported by transport " + this); //$NON-NLS-1$
+        }
+        bootstrap.option(EpollChannelOption.IP_RECVORIGDSTADDR, Boolean.TRUE);
+    }
+    
+    /**
+     * Applies batched datagram io to given bootstrap. The receive allocator must provide {@code datagramSize * receiveBatch} bytes per read.
+     * 
+     * @param bootstrap
+     *            the bootstrap
+     * @param datagramSize
+     *            the maximum size of a single datagram
+     * @param receiveBatch
+     *            maximum number of datagrams read with a single recvmmsg; 1 to read single datagrams
+     * @param sendBatch
+     *            maximum number of datagrams written with a single sendmmsg; 0 for the transport default
+     * @throws IllegalStateException
+     *             thrown if batched io is not supported
+     */
+    void setBatchedIo(Bootstrap bootstrap, int datagramSize, int receiveBatch, int sendBatch)
+    {
+        if (!this.supportsBatchedIo())
+        {
+            throw new IllegalStateException("Batched io is not supported by transport " + this); //$NON-NLS-1$
+        }
+        if (receiveBatch > 1)
+        {
+            bootstrap.option(this.resolve().getDatagramPayloadOption(), Integer.valueOf(datagramSize));
+        }
+        if (sendBatch > 0)
+        {
+            bootstrap.option(ChannelOption.MAX_MESSAGES_PER_WRITE, Integer.valueOf(sendBatch));
+        }
+    }
+    
+    /**
+     * Returns the channel option for the maximum datagram payload enabling batched reads.
+     * 
+     * @return channel option or {@code null} if batched reads are not supported
+     */
+    ChannelOption<Integer> getDatagramPayloadOption()
+    {
+        return null;
+    }
+    
+    /**
+     * Returns the concrete transport.
+     * 
+     * @return the concrete transport; never {@link #AUTO}
+     */
+    public RaknetTransport resolve()
+    {
+        return this;
+    }
+    
+    /**
+     * Returns the concrete transport for given event loop group.
+     * 
+     * @param group
+     *            event loop group
+     * @return transport or {@code null} if the group does not belong to a known transport
+     */
+    static RaknetTransport of(EventLoopGroup group)
+    {
+        if (NIO.isCompatible(group))
+        {
+            return NIO;
+        }
+        if (EPOLL.isCompatible(group))
+        {
+            return EPOLL;
+        }
+        if (IO_URING.isCompatible(group))
+        {
+            return IO_URING;
+        }
+        return null;
+    }
+    
+}
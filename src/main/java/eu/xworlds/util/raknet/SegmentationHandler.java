@@ -0,0 +1,260 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.unix.Errors;
+import io.netty.channel.unix.SegmentedDatagramPacket;
+
+/**
+ * Outbound handler coalescing consecutive datagrams to the same recipient into a single UDP segmentation offload (GSO) send.
+ * 
+ * <p>
+ * Datagrams are collected until flush, a different recipient or sender or a datagram not fitting the segment size. All segments except the last one must have the same
+ * size. If the kernel or network device rejects a segmented send (EIO, EINVAL or EOPNOTSUPP) the handler falls back to single datagrams for the rest of the
+ * channel lifetime. Other errors, for example an unreachable recipient, only fail the datagrams of that send.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+class SegmentationHandler extends ChannelOutboundHandlerAdapter
+{
+    
+    /** the maximum number of segments per send (UDP_MAX_SEGMENTS) */
+    private static final int             MAX_SEGMENTS     = 64;
+    
+    /** the maximum payload of a segmented send */
+    private static final int             MAX_PAYLOAD      = 65507;
+    
+    /** linux errno: the device cannot send the segments */
+    private static final int             EIO              = 5;
+    
+    /** linux errno: the kernel rejects the segment size or the checksum offload is missing */
+    private static final int             EINVAL           = 22;
+    
+    /** linux errno: segmentation offload is not supported */
+    private static final int             EOPNOTSUPP       = 95;
+    
+    /** the pending datagrams */
+    private final List<DatagramPacket>   pending          = new ArrayList<>();
+    
+    /** the promises of the pending datagrams */
+    private final List<ChannelPromise>   pendingPromises  = new ArrayList<>();
+    
+    /** the bytes of the pending datagrams */
+    private int                          pendingBytes;
+    
+    /** the segment size of the pending datagrams */
+    private int                          segmentSize;
+    
+    /** true if a segmented send failed and single datagrams are sent */
+    private boolean                      disabled;
+    
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (this.disabled || !(msg instanceof DatagramPacket) || msg instanceof SegmentedDatagramPacket)
+        {
+            this.writePending(ctx);
+            ctx.write(msg, promise);
+            return;
+        }
+        
+        final DatagramPacket packet = (DatagramPacket) msg;
+        final int size = packet.content().readableBytes();
+        if (!this.pending.isEmpty() && !this.fits(packet, size))
+        {
+            this.writePending(ctx);
+        }
+        if (this.pending.isEmpty())
+        {
+            this.segmentSize = size;
+        }
+        this.pending.add(packet);
+        this.pendingPromises.add(promise);
+        this.pendingBytes += size;
+    }
+    
+    /**
+     * Checks if given datagram can be appended to the pending datagrams.
+     * 
+     * @param packet
+     *            datagram
+     * @param size
+     *            datagram size
+     * @return {@code true} if the datagram can be sent within the same segmented send
+     */
+    private boolean fits(DatagramPacket packet, int size)
+    {
+        if (size == 0 || size > this.segmentSize || this.pending.size() >= MAX_SEGMENTS || this.pendingBytes + size > MAX_PAYLOAD)
+        {
+            return false;
+        }
+        final DatagramPacket last = this.pending.get(this.pending.size() - 1);
+        // a short datagram terminates the segments
+        // the segmented send leaves from the sender of the first datagram
+        return last.content().readableBytes() == this.segmentSize && packet.recipient().equals(last.recipient()) && Objects.equals(packet.sender(), last.sender());
+    }
+    
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception
+    {
+        this.writePending(ctx);
+        ctx.flush();
+    }
+    
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception
+    {
+        this.writePending(ctx);
+        ctx.close(promise);
+    }
+    
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        this.writePending(ctx);
+    }
+    
+    /**
+     * Writes the pending datagrams.
+     * 
+     * @param ctx
+     *            channel handler context
+     */
+    private void writePending(ChannelHandlerContext ctx)
+    {
+        final int count = this.pending.size();
+        if (count == 0)
+        {
+            return;
+        }
+        if (count == 1)
+        {
+            ctx.write(this.pending.get(0), this.pendingPromises.get(0));
+        }
+        else
+        {
+            final DatagramPacket[] packets = this.pending.toArray(new DatagramPacket[count]);
+            final ChannelPromise[] promises = this.pendingPromises.toArray(new ChannelPromise[count]);
+            final InetSocketAddress recipient = packets[0].recipient();
+            final CompositeByteBuf data = ctx.alloc().compositeDirectBuffer(count);
+            for (final DatagramPacket packet : packets)
+            {
+                // keep the datagrams for the fallback
+                data.addComponent(true, packet.content().retain());
+            }
+            ctx.write(new SegmentedDatagramPacket(data, this.segmentSize, recipient, packets[0].sender())).addListener(new SegmentedListener(ctx, packets, promises));
+        }
+        this.pending.clear();
+        this.pendingPromises.clear();
+        this.pendingBytes = 0;
+    }
+    
+    /**
+     * Checks if a failed segmented send was rejected for the segmentation itself.
+     * 
+     * @param cause
+     *            the failure
+     * @return {@code true} if the kernel or device does not support the segmented send; {@code false} for errors of the recipient or the channel
+     */
+    static boolean isUnsupported(Throwable cause)
+    {
+        if (!(cause instanceof Errors.NativeIoException))
+        {
+            return false;
+        }
+        // netty reports the negated errno
+        final int errno = Math.abs(((Errors.NativeIoException) cause).expectedErr());
+        return errno == EIO || errno == EINVAL || errno == EOPNOTSUPP;
+    }
+    
+    /**
+     * Listener completing the promises of a segmented send.
+     */
+    private final class SegmentedListener implements ChannelFutureListener
+    {
+        
+        /** the channel handler context */
+        private final ChannelHandlerContext ctx;
+        
+        /** the segments */
+        private final DatagramPacket[]      packets;
+        
+        /** the promises of the segments */
+        private final ChannelPromise[]      promises;
+        
+        /**
+         * Constructor.
+         * 
+         * @param ctx
+         *            channel handler context
+         * @param packets
+         *            the segments
+         * @param promises
+         *            the promises of the segments
+         */
+        SegmentedListener(ChannelHandlerContext ctx, DatagramPacket[] packets, ChannelPromise[] promises)
+        {
+            this.ctx = ctx;
+            this.packets = packets;
+            this.promises = promises;
+        }
+        
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception
+        {
+            if (!future.isSuccess() && isUnsupported(future.cause()) && this.ctx.channel().isActive())
+            {
+                // segmentation offload not supported by kernel or device; resend as single datagrams
+                SegmentationHandler.this.disabled = true;
+                for (int i = 0; i < this.packets.length; i++)
+                {
+                    this.ctx.write(this.packets[i], this.promises[i]);
+                }
+                this.ctx.flush();
+                return;
+            }
+            for (int i = 0; i < this.packets.length; i++)
+            {
+                this.packets[i].release();
+                if (future.isSuccess())
+                {
+                    this.promises[i].trySuccess();
+                }
+                else
+                {
+                    this.promises[i].tryFailure(future.cause());
+                }
+            }
+        }
+        
+    }
+    
+}
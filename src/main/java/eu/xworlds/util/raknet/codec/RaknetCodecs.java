@@ -0,0 +1,143 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet.codec;
+
+import eu.xworlds.util.raknet.protocol.RaknetMessage;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Helpers invoked by generated codecs.
+ * 
+ * @author mepeisen
+ */
+public final class RaknetCodecs
+{
+    
+    /**
+     * Hidden constructor.
+     */
+    private RaknetCodecs()
+    {
+        // empty
+    }
+    
+    /**
+     * Reads the magic.
+     * 
+     * @param buf
+     *            source buffer
+     * @return a copy of the received bytes; never the shared {@link RaknetMessage#OFFLINE_MESSAGE_DATA_ID} as messages hand out their magic array
+     */
+    public static byte[] readMagic(ByteBuf buf)
+    {
+        final byte[] result = new byte[RaknetMessage.MAGIC_BYTES];
+        buf.readBytes(result);
+        return result;
+    }
+    
+    /**
+     * Reads a byte array of fixed length.
+     * 
+     * @param buf
+     *            source buffer
+     * @param current
+     *            the current array; reused if it has the requested length
+     * @param length
+     *            number of bytes
+     * @return byte array
+     */
+    public static byte[] readBytes(ByteBuf buf, byte[] current, int length)
+    {
+        final byte[] result = current != null && current.length == length ? current : new byte[length];
+        buf.readBytes(result);
+        return result;
+    }
+    
+    /**
+     * Checks an unsigned byte value.
+     * 
+     * @param value
+     *            value to write
+     * @return the value
+     * @throws IllegalArgumentException
+     *             thrown if the value exceeds the allowed size
+     */
+    public static int checkUnsignedByte(int value)
+    {
+        if ((value & ~0xff) != 0)
+        {
+            throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
+        }
+        return value;
+    }
+    
+    /**
+     * Checks an unsigned short value.
+     * 
+     * @param value
+     *            value to write
+     * @return the value
+     * @throws IllegalArgumentException
+     *             thrown if the value exceeds the allowed size
+     */
+    public static int checkUnsignedShort(int value)
+    {
+        if ((value & ~0xffff) != 0)
+        {
+            throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
+        }
+        return value;
+    }
+    
+    /**
+     * Checks an unsigned medium value.
+     * 
+     * @param value
+     *            value to write
+     * @return the value
+     * @throws IllegalArgumentException
+     *             thrown if the value exceeds the allowed size
+     */
+    public static int checkUnsignedMedium(int value)
+    {
+        if ((value & ~0xffffff) != 0)
+        {
+            throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
+        }
+        return value;
+    }
+    
+    /**
+     * Checks an unsigned int value.
+     * 
+     * @param value
+     *            value to write
+     * @return the value as int bits
+     * @throws IllegalArgumentException
+     *             thrown if the value exceeds the allowed size
+     */
+    public static int checkUnsignedInt(long value)
+    {
+        if ((value & ~0xffffffffL) != 0)
+        {
+            throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
+        }
+        return (int) value;
+    }
+    
+}
@@ -0,0 +1,373 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * UTF-8 string codec working directly on byte buffers.
+ * 
+ * <p>
+ * Decoding reads heap and direct buffers into a per thread char buffer. Short strings are interned in a small per thread cache, so strings repeating on
+ * the wire (server names, MOTDs, player names) are returned without allocation. Encoding writes directly into the target buffer.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class Utf8Codec
+{
+    
+    /** strings with up to this number of chars are interned */
+    private static final int                    MAX_INTERN_LENGTH = 64;
+    
+    /** the number of interned strings per thread; must be a power of two */
+    private static final int                    INTERN_SLOTS      = 512;
+    
+    /** the per thread decoder state */
+    private static final FastThreadLocal<State> STATE             = new FastThreadLocal<State>()
+    {
+        @Override
+        protected State initialValue()
+        {
+            return new State();
+        }
+    };
+    
+    /**
+     * Hidden constructor.
+     */
+    private Utf8Codec()
+    {
+        // empty
+    }
+    
+    /**
+     * Reads a string prefixed by its unsigned short byte length.
+     * 
+     * @param buf
+     *            source buffer
+     * @return string
+     */
+    public static String readUShort(ByteBuf buf)
+    {
+        return read(buf, buf.readUnsignedShort());
+    }
+    
+    /**
+     * Reads a string.
+     * 
+     * @param buf
+     *            source buffer
+     * @param length
+     *            number of bytes
+     * @return string; malformed input is replaced by U+FFFD
+     * @throws IndexOutOfBoundsException
+     *             thrown if the buffer has less than {@code length} readable bytes
+     */
+    public static String read(ByteBuf buf, int length)
+    {
+        if (length == 0)
+        {
+            return ""; //$NON-NLS-1$
+        }
+        final int start = buf.readerIndex();
+        final int end = start + length;
+        if (length > buf.readableBytes())
+        {
+            throw new IndexOutOfBoundsException("length " + length + " exceeds readable bytes " + buf.readableBytes()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        final State state = STATE.get();
+        final char[] chars = state.chars(length);
+        int count = 0;
+        int hash = 0;
+        int i = start;
+        while (i < end)
+        {
+            final int b = buf.getByte(i++);
+            if (b >= 0)
+            {
+                chars[count++] = (char) b;
+                hash = 31 * hash + b;
+                continue;
+            }
+            int cp;
+            int more;
+            if ((b & 0xE0) == 0xC0)
+            {
+                cp = b & 0x1F;
+                more = 1;
+            }
+            else if ((b & 0xF0) == 0xE0)
+            {
+                cp = b & 0x0F;
+                more = 2;
+            }
+            else if ((b & 0xF8) == 0xF0)
+            {
+                cp = b & 0x07;
+                more = 3;
+            }
+            else
+            {
+                cp = -1;
+                more = 0;
+            }
+            final int min = more == 1 ? 0x80 : more == 2 ? 0x800 : 0x10000;
+            while (more > 0 && cp >= 0)
+            {
+                if (i >= end)
+                {
+                    cp = -1;
+                    break;
+                }
+                final int c = buf.getByte(i);
+                if ((c & 0xC0) != 0x80)
+                {
+                    cp = -1;
+                    break;
+                }
+                i++;
+                cp = (cp << 6) | (c & 0x3F);
+                more--;
+            }
+            if (cp < min || cp > Character.MAX_CODE_POINT || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+            {
+                cp = 0xFFFD;
+            }
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            {
+                final char high = Character.highSurrogate(cp);
+                final char low = Character.lowSurrogate(cp);
+                chars[count++] = high;
+                chars[count++] = low;
+                hash = 31 * (31 * hash + high) + low;
+            }
+            else
+            {
+                chars[count++] = (char) cp;
+                hash = 31 * hash + cp;
+            }
+        }
+        buf.readerIndex(end);
+        if (count > MAX_INTERN_LENGTH)
+        {
+            return new String(chars, 0, count);
+        }
+        return state.intern(chars, count, hash);
+    }
+    
+    /**
+     * Returns the number of bytes needed to encode given string.
+     * 
+     * @param value
+     *            the string
+     * @return encoded length
+     */
+    public static int utf8Length(CharSequence value)
+    {
+        final int len = value.length();
+        int result = len;
+        for (int i = 0; i < len; i++)
+        {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                continue;
+            }
+            if (c < 0x800)
+            {
+                result++;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                // 4 bytes for two chars
+                result += 2;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                // unpaired surrogates are written as '?'
+                continue;
+            }
+            else
+            {
+                result += 2;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Writes a string prefixed by its unsigned short byte length.
+     * 
+     * @param target
+     *            target buffer
+     * @param value
+     *            the string
+     * @throws IllegalArgumentException
+     *             thrown if the encoded string exceeds 65535 bytes
+     */
+    public static void writeUShort(ByteBuf target, CharSequence value)
+    {
+        final int length = utf8Length(value);
+        if (length > 0xFFFF)
+        {
+            throw new IllegalArgumentException(length + " exceeds allowed size"); //$NON-NLS-1$
+        }
+        target.ensureWritable(2 + length);
+        target.writeShort(length);
+        write(target, value, length);
+    }
+    
+    /**
+     * Writes a string without length information.
+     * 
+     * @param target
+     *            target buffer
+     * @param value
+     *            the string
+     * @return number of bytes written
+     */
+    public static int write(ByteBuf target, CharSequence value)
+    {
+        final int length = utf8Length(value);
+        target.ensureWritable(length);
+        write(target, value, length);
+        return length;
+    }
+    
+    /**
+     * Writes a string; the target has enough writable bytes.
+     * 
+     * @param target
+     *            target buffer
+     * @param value
+     *            the string
+     * @param length
+     *            the encoded length
+     */
+    private static void write(ByteBuf target, CharSequence value, int length)
+    {
+        final int len = value.length();
+        int index = target.writerIndex();
+        for (int i = 0; i < len; i++)
+        {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                target.setByte(index++, c);
+            }
+            else if (c < 0x800)
+            {
+                target.setByte(index++, 0xC0 | (c >> 6));
+                target.setByte(index++, 0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                target.setByte(index++, 0xF0 | (cp >> 18));
+                target.setByte(index++, 0x80 | ((cp >> 12) & 0x3F));
+                target.setByte(index++, 0x80 | ((cp >> 6) & 0x3F));
+                target.setByte(index++, 0x80 | (cp & 0x3F));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                target.setByte(index++, '?');
+            }
+            else
+            {
+                target.setByte(index++, 0xE0 | (c >> 12));
+                target.setByte(index++, 0x80 | ((c >> 6) & 0x3F));
+                target.setByte(index++, 0x80 | (c & 0x3F));
+            }
+        }
+        target.writerIndex(index);
+    }
+    
+    /**
+     * Per thread decoder state.
+     */
+    private static final class State
+    {
+        
+        /** the char buffer */
+        private char[]         chars    = new char[256];
+        
+        /** the interned strings */
+        private final String[] interned = new String[INTERN_SLOTS];
+        
+        /**
+         * Constructor.
+         */
+        State()
+        {
+            // empty
+        }
+        
+        /**
+         * Returns the char buffer for decoding given number of bytes.
+         * 
+         * @param length
+         *            number of bytes
+         * @return char buffer
+         */
+        char[] chars(int length)
+        {
+            if (this.chars.length < length)
+            {
+                this.chars = new char[Math.max(length, this.chars.length * 2)];
+            }
+            return this.chars;
+        }
+        
+        /**
+         * Returns the interned string for given chars.
+         * 
+         * @param value
+         *            the decoded chars
+         * @param count
+         *            number of chars
+         * @param hash
+         *            the string hash
+         * @return string
+         */
+        String intern(char[] value, int count, int hash)
+        {
+            final int slot = (hash ^ (hash >>> 16)) & (INTERN_SLOTS - 1);
+            final String candidate = this.interned[slot];
+            if (candidate != null && candidate.hashCode() == hash && candidate.length() == count)
+            {
+                int i = 0;
+                while (i < count && candidate.charAt(i) == value[i])
+                {
+                    i++;
+                }
+                if (i == count)
+                {
+                    return candidate;
+                }
+            }
+            final String result = new String(value, 0, count);
+            this.interned[slot] = result;
+            return result;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,610 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet.codec.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import eu.xworlds.util.raknet.codec.Address;
+import eu.xworlds.util.raknet.codec.Bool;
+import eu.xworlds.util.raknet.codec.Bytes;
+import eu.xworlds.util.raknet.codec.Guid;
+import eu.xworlds.util.raknet.codec.Int32;
+import eu.xworlds.util.raknet.codec.Magic;
+import eu.xworlds.util.raknet.codec.PresentIf;
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.Time;
+import eu.xworlds.util.raknet.codec.UInt16;
+import eu.xworlds.util.raknet.codec.UInt24;
+import eu.xworlds.util.raknet.codec.UInt32;
+import eu.xworlds.util.raknet.codec.UInt8;
+import eu.xworlds.util.raknet.codec.Utf8;
+
+/**
+ * Annotation processor generating codecs for classes annotated with {@link RaknetCodec}.
+ * 
+ * <p>
+ * The generated class {@code <message>Codec} offers the static methods {@code parse}, {@code encodeTo}, {@code encodedSize} and {@code isValid}. The code is
+ * straight-line; optional fields add a single branch per flag.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class CodecProcessor extends AbstractProcessor
+{
+    
+    /** the helper class invoked by generated code */
+    private static final String HELPER = "eu.xworlds.util.raknet.codec.RaknetCodecs"; //$NON-NLS-1$
+    
+    /** the system address class */
+    private static final String ADDRESS     = "eu.xworlds.util.raknet.protocol.SystemAddress"; //$NON-NLS-1$
+    
+    /** the string codec class */
+    private static final String UTF8        = "eu.xworlds.util.raknet.codec.Utf8Codec"; //$NON-NLS-1$
+    
+    /** the magic size */
+    private static final int    MAGIC_BYTES = 16;
+    
+    @Override
+    public Set<String> getSupportedAnnotationTypes()
+    {
+        return Collections.singleton(RaknetCodec.class.getName());
+    }
+    
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+    
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        for (final Element element : roundEnv.getElementsAnnotatedWith(RaknetCodec.class))
+        {
+            if (element.getKind() != ElementKind.CLASS)
+            {
+                this.error(element, "@RaknetCodec is only allowed on classes"); //$NON-NLS-1$
+                continue;
+            }
+            final TypeElement type = (TypeElement) element;
+            final List<WireField> fields = this.getFields(type);
+            if (fields != null)
+            {
+                this.generate(type, fields);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Collects the annotated fields of given message class.
+     * 
+     * @param type
+     *            message class
+     * @return annotated fields in declaration order or {@code null} on errors
+     */
+    private List<WireField> getFields(TypeElement type)
+    {
+        final List<WireField> result = new ArrayList<>();
+        final Set<String> flags = new HashSet<>();
+        boolean failed = false;
+        for (final VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements()))
+        {
+            final WireType wireType = getWireType(field);
+            if (wireType == null)
+            {
+                if (field.getAnnotation(PresentIf.class) != null)
+                {
+                    this.error(field, "@PresentIf requires a wire type annotation"); //$NON-NLS-1$
+                    failed = true;
+                }
+                continue;
+            }
+            final Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.FINAL))
+            {
+                this.error(field, "wire fields must not be private, static or final"); //$NON-NLS-1$
+                failed = true;
+                continue;
+            }
+            if (!wireType.javaType.equals(field.asType().toString()))
+            {
+                this.error(field, "wire field must be of type " + wireType.javaType); //$NON-NLS-1$
+                failed = true;
+                continue;
+            }
+            final String name = field.getSimpleName().toString();
+            int size = wireType.size;
+            if (wireType == WireType.BYTES)
+            {
+                size = field.getAnnotation(Bytes.class).value();
+                if (size < 0)
+                {
+                    this.error(field, "negative length"); //$NON-NLS-1$
+                    failed = true;
+                    continue;
+                }
+            }
+            String flag = null;
+            final PresentIf presentIf = field.getAnnotation(PresentIf.class);
+            if (presentIf != null)
+            {
+                flag = presentIf.value();
+                if (wireType == WireType.ADDRESS || wireType == WireType.STRING)
+                {
+                    this.error(field, "variable sized fields cannot be optional"); //$NON-NLS-1$
+                    failed = true;
+                    continue;
+                }
+                if (!flags.contains(flag))
+                {
+                    this.error(field, "@PresentIf must reference a preceding non-optional @Bool field"); //$NON-NLS-1$
+                    failed = true;
+                    continue;
+                }
+            }
+            else if (wireType == WireType.BOOL)
+            {
+                flags.add(name);
+            }
+            result.add(new WireField(name, wireType, size, flag));
+        }
+        return failed ? null : result;
+    }
+    
+    /**
+     * Returns the wire type of given field.
+     * 
+     * @param field
+     *            the field
+     * @return wire type or {@code null} if the field is not annotated
+     */
+    private static WireType getWireType(VariableElement field)
+    {
+        for (final WireType type : WireType.values())
+        {
+            if (field.getAnnotation(type.annotation) != null)
+            {
+                return type;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Writes the codec source.
+     * 
+     * @param type
+     *            message class
+     * @param fields
+     *            wire fields
+     */
+    private void generate(TypeElement type, List<WireField> fields)
+    {
+        final String pkg = ((PackageElement) this.processingEnv.getElementUtils().getPackageOf(type)).getQualifiedName().toString();
+        final String msg = type.getSimpleName().toString();
+        final String codec = msg + "Codec"; //$NON-NLS-1$
+        final StringBuilder src = new StringBuilder();
+        if (!pkg.isEmpty())
+        {
+            src.append("package ").append(pkg).append(";\n\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        src.append("/**\n * Codec for {@link ").append(msg).append("}; generated by ").append(CodecProcessor.class.getName()).append(", do not edit.\n */\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        src.append("final class ").append(codec).append("\n{\n\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        src.append("    private ").append(codec).append("()\n    {\n        // empty\n    }\n\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        
+        // parse
+        src.append("    static void parse(").append(msg).append(" msg, io.netty.buffer.ByteBuf buf)\n    {\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        String open = null;
+        for (final WireField field : fields)
+        {
+            open = switchBlock(src, open, field.flag, "msg."); //$NON-NLS-1$
+            src.append(open == null ? "        " : "            ").append("msg.").append(field.name).append(" = ").append(field.type.read(field)).append(";\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        }
+        switchBlock(src, open, null, null);
+        src.append("    }\n\n"); //$NON-NLS-1$
+        
+        // encode
+        src.append("    static void encodeTo(").append(msg).append(" msg, io.netty.buffer.ByteBuf target)\n    {\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        open = null;
+        for (final WireField field : fields)
+        {
+            open = switchBlock(src, open, field.flag, "msg."); //$NON-NLS-1$
+            src.append(open == null ? "        " : "            ").append(field.type.write(field)).append(";\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        switchBlock(src, open, null, null);
+        src.append("    }\n\n"); //$NON-NLS-1$
+        
+        // size
+        src.append("    static int encodedSize(").append(msg).append(" msg)\n    {\n        return ").append(sizeExpression(fields)).append(";\n    }\n\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        
+        // validation
+        src.append("    static boolean isValid(io.netty.buffer.ByteBuf buf)\n    {\n"); //$NON-NLS-1$
+        if (isFixedSize(fields))
+        {
+            src.append("        return buf.readableBytes() >= ").append(sizeExpression(fields)).append(";\n    }\n\n}\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        else
+        {
+            src.append("        final int readable = buf.readableBytes();\n        int size = 0;\n"); //$NON-NLS-1$
+            int pending = 0;
+            String group = null;
+            int groupSize = 0;
+            for (final WireField field : fields)
+            {
+                if (field.flag != null)
+                {
+                    if (group != null && !group.equals(field.flag))
+                    {
+                        appendOptionalSize(src, group, groupSize);
+                        groupSize = 0;
+                    }
+                    group = field.flag;
+                    groupSize += field.size;
+                    continue;
+                }
+                if (group != null)
+                {
+                    appendOptionalSize(src, group, groupSize);
+                    group = null;
+                    groupSize = 0;
+                }
+                if (field.type == WireType.ADDRESS)
+                {
+                    final String local = field.name + "Size"; //$NON-NLS-1$
+                    src.append("        size += ").append(pending + 1).append(";\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    src.append("        if (readable < size)\n        {\n            return false;\n        }\n"); //$NON-NLS-1$
+                    src.append("        final int ").append(local).append(" = ").append(ADDRESS).append(".sizeAt(buf, buf.readerIndex() + size - 1);\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                    src.append("        if (").append(local).append(" < 0)\n        {\n            return false;\n        }\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    src.append("        size += ").append(local).append(" - 1;\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    pending = 0;
+                    continue;
+                }
+                if (field.type == WireType.STRING)
+                {
+                    src.append("        size += ").append(pending + 2).append(";\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    src.append("        if (readable < size)\n        {\n            return false;\n        }\n"); //$NON-NLS-1$
+                    src.append("        size += buf.getUnsignedShort(buf.readerIndex() + size - 2);\n"); //$NON-NLS-1$
+                    pending = 0;
+                    continue;
+                }
+                pending += field.size;
+                if (field.type == WireType.BOOL && isFlag(fields, field.name))
+                {
+                    src.append("        size += ").append(pending).append(";\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    src.append("        if (readable < size)\n        {\n            return false;\n        }\n"); //$NON-NLS-1$
+                    src.append("        final boolean ").append(field.name).append(" = buf.getBoolean(buf.readerIndex() + size - 1);\n"); //$NON-NLS-1$ //$NON-NLS-2$
+                    pending = 0;
+                }
+            }
+            if (group != null)
+            {
+                appendOptionalSize(src, group, groupSize);
+            }
+            src.append("        return readable >= size").append(pending == 0 ? "" : " + " + pending).append(";\n    }\n\n}\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+        
+        try
+        {
+            final JavaFileObject file = this.processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? codec : pkg + '.' + codec, type);
+            try (final Writer writer = file.openWriter())
+            {
+                writer.write(src.toString());
+            }
+        }
+        catch (IOException ex)
+        {
+            this.error(type, "Unable to write codec: " + ex); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Opens or closes the conditional block for optional fields.
+     * 
+     * @param src
+     *            the source
+     * @param open
+     *            the flag of the currently opened block or {@code null}
+     * @param flag
+     *            the flag of the next field or {@code null}
+     * @param prefix
+     *            the prefix to access the flag
+     * @return the flag of the opened block
+     */
+    private static String switchBlock(StringBuilder src, String open, String flag, String prefix)
+    {
+        if (open != null && !open.equals(flag))
+        {
+            src.append("        }\n"); //$NON-NLS-1$
+        }
+        if (flag != null && !flag.equals(open))
+        {
+            src.append("        if (").append(prefix).append(flag).append(")\n        {\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return flag;
+    }
+    
+    /**
+     * Builds the size expression; fixed sizes are folded into a single constant.
+     * 
+     * @param fields
+     *            wire fields
+     * @return size expression
+     */
+    private static String sizeExpression(List<WireField> fields)
+    {
+        int fixed = 0;
+        final StringBuilder optional = new StringBuilder();
+        String group = null;
+        int groupSize = 0;
+        for (final WireField field : fields)
+        {
+            if (field.type == WireType.ADDRESS)
+            {
+                optional.append(" + msg.").append(field.name).append(".encodedSize()"); //$NON-NLS-1$ //$NON-NLS-2$
+                continue;
+            }
+            if (field.type == WireType.STRING)
+            {
+                fixed += 2;
+                optional.append(" + ").append(UTF8).append(".utf8Length(msg.").append(field.name).append(')'); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                continue;
+            }
+            if (field.flag == null)
+            {
+                fixed += field.size;
+                continue;
+            }
+            if (group != null && !group.equals(field.flag))
+            {
+                optional.append(" + (msg.").append(group).append(" ? ").append(groupSize).append(" : 0)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                groupSize = 0;
+            }
+            group = field.flag;
+            groupSize += field.size;
+        }
+        if (group != null)
+        {
+            optional.append(" + (msg.").append(group).append(" ? ").append(groupSize).append(" : 0)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        return fixed + optional.toString();
+    }
+    
+    /**
+     * Appends the size of optional fields to the validation code.
+     * 
+     * @param src
+     *            the source
+     * @param flag
+     *            the flag gating the fields
+     * @param size
+     *            the size of the fields
+     */
+    private static void appendOptionalSize(StringBuilder src, String flag, int size)
+    {
+        src.append("        if (").append(flag).append(")\n        {\n            size += ").append(size).append(";\n        }\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    
+    /**
+     * Checks if the message has a fixed size.
+     * 
+     * @param fields
+     *            wire fields
+     * @return {@code true} if no field is optional or of variable size
+     */
+    private static boolean isFixedSize(List<WireField> fields)
+    {
+        for (final WireField field : fields)
+        {
+            if (field.flag != null || field.type == WireType.ADDRESS || field.type == WireType.STRING)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Checks if given field is referenced by a {@link PresentIf}.
+     * 
+     * @param fields
+     *            wire fields
+     * @param name
+     *            field name
+     * @return {@code true} if the field gates optional fields
+     */
+    private static boolean isFlag(List<WireField> fields, String name)
+    {
+        for (final WireField field : fields)
+        {
+            if (name.equals(field.flag))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reports an error.
+     * 
+     * @param element
+     *            the element causing the error
+     * @param message
+     *            the error message
+     */
+    private void error(Element element, String message)
+    {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+    
+    /**
+     * A field on the wire.
+     */
+    private static final class WireField
+    {
+        
+        /** field name */
+        final String   name;
+        
+        /** wire type */
+        final WireType type;
+        
+        /** number of bytes on the wire */
+        final int      size;
+        
+        /** the flag gating this field or {@code null} */
+        final String   flag;
+        
+        /**
+         * Constructor.
+         * 
+         * @param name
+         *            field name
+         * @param type
+         *            wire type
+         * @param size
+         *            number of bytes on the wire
+         * @param flag
+         *            the flag gating this field or {@code null}
+         */
+        WireField(String name, WireType type, int size, String flag)
+        {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.flag = flag;
+        }
+        
+    }
+    
+    /**
+     * The supported wire types.
+     */
+    private enum WireType
+    {
+        /** magic */
+        MAGIC(Magic.class, "byte[]", MAGIC_BYTES, HELPER + ".readMagic(buf)", "target.writeBytes(msg.%s, 0, " + MAGIC_BYTES + ")"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        /** guid */
+        GUID(Guid.class, "long", 8, "buf.readLong()", "target.writeLong(msg.%s)"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        /** time */
+        TIME(Time.class, "long", 8, "buf.readLong()", "target.writeLong(msg.%s)"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        /** boolean */
+        BOOL(Bool.class, "boolean", 1, "buf.readBoolean()", "target.writeBoolean(msg.%s)"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        /** unsigned byte */
+        UINT8(UInt8.class, "short", 1, "buf.readUnsignedByte()", "target.writeByte(" + HELPER + ".checkUnsignedByte(msg.%s))"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        /** unsigned short */
+        UINT16(UInt16.class, "int", 2, "buf.readUnsignedShort()", "target.writeShort(" + HELPER + ".checkUnsignedShort(msg.%s))"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        /** unsigned medium */
+        UINT24(UInt24.class, "int", 3, "buf.readUnsignedMedium()", "target.writeMedium(" + HELPER + ".checkUnsignedMedium(msg.%s))"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        /** unsigned int */
+        UINT32(UInt32.class, "long", 4, "buf.readUnsignedInt()", "target.writeInt(" + HELPER + ".checkUnsignedInt(msg.%s))"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        /** signed int */
+        INT32(Int32.class, "int", 4, "buf.readInt()", "target.writeInt(msg.%s)"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        /** fixed length bytes */
+        BYTES(Bytes.class, "byte[]", 0, HELPER + ".readBytes(buf, msg.%s, %d)", "target.writeBytes(msg.%s, 0, %d)"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        /** system address of variable size */
+        ADDRESS(Address.class, CodecProcessor.ADDRESS, 0, CodecProcessor.ADDRESS + ".read(buf)", "msg.%s.encodeTo(target)"), //$NON-NLS-1$ //$NON-NLS-2$
+        /** utf8 string of variable size */
+        STRING(Utf8.class, "java.lang.String", 0, CodecProcessor.UTF8 + ".readUShort(buf)", CodecProcessor.UTF8 + ".writeUShort(target, msg.%s)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        
+        /** the annotation */
+        final Class<? extends Annotation> annotation;
+        
+        /** the java type */
+        final String                                          javaType;
+        
+        /** the wire size */
+        final int                                             size;
+        
+        /** the read expression */
+        private final String                                  read;
+        
+        /** the write statement */
+        private final String                                  write;
+        
+        /**
+         * Constructor.
+         * 
+         * @param annotation
+         *            the annotation
+         * @param javaType
+         *            the java type
+         * @param size
+         *            the wire size
+         * @param read
+         *            the read expression
+         * @param write
+         *            the write statement
+         */
+        private WireType(Class<? extends Annotation> annotation, String javaType, int size, String read, String write)
+        {
+            this.annotation = annotation;
+            this.javaType = javaType;
+            this.size = size;
+            this.read = read;
+            this.write = write;
+        }
+        
+        /**
+         * Returns the read expression for given field.
+         * 
+         * @param field
+         *            the field
+         * @return read expression
+         */
+        String read(WireField field)
+        {
+            return String.format(this.read, field.name, Integer.valueOf(field.size));
+        }
+        
+        /**
+         * Returns the write statement for given field.
+         * 
+         * @param field
+         *            the field
+         * @return write statement
+         */
+        String write(WireField field)
+        {
+            return String.format(this.write, field.name, Integer.valueOf(field.size));
+        }
+        
+    }
+    
+}
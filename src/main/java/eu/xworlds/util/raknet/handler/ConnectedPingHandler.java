@@ -48,7 +48,7 @@ public class ConnectedPingHandler implements RaknetMessageHandler<ConnectedPing>
     @Override
     public void handle(ConnectedPing message, RaknetSession session, Collection<Object> out)
     {
-        final ConnectedPong pong = new ConnectedPong(message.getReceiver(), message.getSender());
+        final ConnectedPong pong = ConnectedPong.newInstance(message.getReceiver(), message.getSender());
         pong.setPingTime(message.getTime());
         pong.setPongTime(this.server.getRaknetTime());
         session.send(pong);
@@ -18,11 +18,9 @@
 
 package eu.xworlds.util.raknet.protocol;
 
-import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
-
 import org.apache.commons.codec.binary.Hex;
 
+import eu.xworlds.util.raknet.codec.Utf8Codec;
 import io.netty.buffer.ByteBuf;
 
 /**
@@ -65,16 +63,8 @@ public abstract class BaseMessage implements RaknetMessage
         {
             throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
         }
-        if (target.order() == ByteOrder.BIG_ENDIAN)
-        {
-            target.writeByte(value >> 8);
-            target.writeByte(value);
-        }
-        else
-        {
-            target.writeByte(value);
-            target.writeByte(value >> 8);
-        }
+        // raknet is big endian; netty buffers always write big endian
+        target.writeShort(value);
     }
     
     /**
@@ -85,24 +75,11 @@ public abstract class BaseMessage implements RaknetMessage
      */
     protected void writeUnsignedInt(ByteBuf target, long value)
     {
-        if (value < 0 || value > 0xffffffl)
+        if (value < 0 || value > 0xffffffffl)
         {
             throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
         }
-        if (target.order() == ByteOrder.BIG_ENDIAN)
-        {
-            target.writeByte((int) value >> 32);
-            target.writeByte((int) value >> 16);
-            target.writeByte((int) value >> 8);
-            target.writeByte((int) value);
-        }
-        else
-        {
-            target.writeByte((int) value);
-            target.writeByte((int) value >> 8);
-            target.writeByte((int) value >> 16);
-            target.writeByte((int) value >> 32);
-        }
+        target.writeInt((int) value);
     }
     
     /**
@@ -117,18 +94,7 @@ public abstract class BaseMessage implements RaknetMessage
         {
             throw new IllegalArgumentException(value + " exceeds allowed size"); //$NON-NLS-1$
         }
-        if (target.order() == ByteOrder.BIG_ENDIAN)
-        {
-            target.writeByte(value >> 16);
-            target.writeByte(value >> 8);
-            target.writeByte(value);
-        }
-        else
-        {
-            target.writeByte(value);
-            target.writeByte(value >> 8);
-            target.writeByte(value >> 16);
-        }
+        target.writeMedium(value);
     }
     
     /**
@@ -139,8 +105,7 @@ public abstract class BaseMessage implements RaknetMessage
      */
     protected String readStringUtf8UShort(ByteBuf src)
     {
-        final int length = src.readUnsignedShort();
-        return new String(src.readBytes(length).array(), StandardCharsets.UTF_8);
+        return Utf8Codec.readUShort(src);
     }
     
     /**
@@ -151,9 +116,18 @@ public abstract class BaseMessage implements RaknetMessage
      */
     protected void writeString(ByteBuf target, String value)
     {
-        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
-        this.writeUnsignedShort(target, bytes.length);
-        target.writeBytes(bytes);
+        Utf8Codec.writeUShort(target, value);
+    }
+    
+    /**
+     * Returns the encoded size of a string written by {@link #writeString(ByteBuf, String)}.
+     * 
+     * @param value string value
+     * @return encoded size including the length
+     */
+    protected int sizeOfString(String value)
+    {
+        return 2 + Utf8Codec.utf8Length(value);
     }
     
     /**
@@ -170,18 +144,6 @@ public abstract class BaseMessage implements RaknetMessage
         return Hex.encodeHexString(buf);
     }
     
-    protected static final int SIZE_IPV4_ADDRESS = 4;
-    
-    protected long readIPv4Address(ByteBuf buf)
-    {
-        return buf.readUnsignedInt();
-    }
-    
-    protected void writeIpv4Address(ByteBuf target, long address)
-    {
-        writeUnsignedInt(target, address);
-    }
-    
     protected static final int SIZE_TIME = 8;
     
     protected long readTime(ByteBuf buf)
@@ -18,10 +18,11 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.Time;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.util.Recycler;
 
 /**
  * Message "ConnectedPing".
@@ -34,14 +35,29 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class ConnectedPing extends TargetedMessage
 {
     
     /** the raknet message id */
     public static final byte ID = 0x00;
     
+    /** the pool of recycled messages */
+    private static final Recycler<ConnectedPing> RECYCLER = new Recycler<ConnectedPing>()
+    {
+        @Override
+        protected ConnectedPing newObject(Recycler.Handle<ConnectedPing> handle)
+        {
+            return new ConnectedPing(handle);
+        }
+    };
+    
+    /** the recycler handle; {@code null} for messages not taken from the pool */
+    private final Recycler.Handle<ConnectedPing> handle;
+    
     /** the ping time code */
-    private long time;
+    @Time
+    long time;
     
     /**
      * Constructor for incoming message.
@@ -52,6 +68,7 @@ public class ConnectedPing extends TargetedMessage
     public ConnectedPing(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
     {
         super(buf, sender, receiver);
+        this.handle = null;
     }
 
     /**
@@ -62,6 +79,43 @@ public class ConnectedPing extends TargetedMessage
     public ConnectedPing(InetSocketAddress sender, InetSocketAddress receiver)
     {
         super(sender, receiver);
+        this.handle = null;
+    }
+
+    /**
+     * Constructor for recycled messages.
+     * @param handle the recycler handle.
+     */
+    private ConnectedPing(Recycler.Handle<ConnectedPing> handle)
+    {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a recycled message for incoming data. The message returns to the pool once it is released.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @return the message
+     */
+    public static ConnectedPing newInstance(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        final ConnectedPing result = RECYCLER.get();
+        result.init(buf, sender, receiver);
+        return result;
+    }
+
+    /**
+     * Returns a recycled message for outgoing traffic. The message returns to the pool once it is released.
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @return the message
+     */
+    public static ConnectedPing newInstance(InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        final ConnectedPing result = RECYCLER.get();
+        result.init(sender, receiver);
+        return result;
     }
 
     /**
@@ -87,19 +141,40 @@ public class ConnectedPing extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        final ByteBuf result = Unpooled.buffer(1 + SIZE_TIME);
-        result.order(ByteOrder.BIG_ENDIAN);
-        result.writeByte(ID);
-        writeTime(result, this.time);
-        return result;
+        return 1 + ConnectedPingCodec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        ConnectedPingCodec.encodeTo(this, target);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.time = readTime(buf);
+        ConnectedPingCodec.parse(this, buf);
+    }
+
+    @Override
+    protected void reset()
+    {
+        super.reset();
+        this.time = 0;
+    }
+
+    @Override
+    protected void deallocate()
+    {
+        super.deallocate();
+        if (this.handle != null)
+        {
+            this.reset();
+            this.handle.recycle(this);
+        }
     }
 
     @Override
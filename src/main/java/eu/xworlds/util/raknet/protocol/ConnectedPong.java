@@ -18,10 +18,11 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.Time;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.util.Recycler;
 
 /**
  * Message "ConnectedPong".
@@ -34,17 +35,33 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class ConnectedPong extends TargetedMessage
 {
     
     /** the raknet message id */
     public static final byte ID = 0x03;
     
+    /** the pool of recycled messages */
+    private static final Recycler<ConnectedPong> RECYCLER = new Recycler<ConnectedPong>()
+    {
+        @Override
+        protected ConnectedPong newObject(Recycler.Handle<ConnectedPong> handle)
+        {
+            return new ConnectedPong(handle);
+        }
+    };
+    
+    /** the recycler handle; {@code null} for messages not taken from the pool */
+    private final Recycler.Handle<ConnectedPong> handle;
+    
     /** the ping time */
-    private long pingTime;
+    @Time
+    long pingTime;
     
     /** the pong time */
-    private long pongTime;
+    @Time
+    long pongTime;
     
     /**
      * Constructor for incoming message.
@@ -55,6 +72,7 @@ public class ConnectedPong extends TargetedMessage
     public ConnectedPong(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
     {
         super(buf, sender, receiver);
+        this.handle = null;
     }
 
     /**
@@ -65,6 +83,43 @@ public class ConnectedPong extends TargetedMessage
     public ConnectedPong(InetSocketAddress sender, InetSocketAddress receiver)
     {
         super(sender, receiver);
+        this.handle = null;
+    }
+
+    /**
+     * Constructor for recycled messages.
+     * @param handle the recycler handle.
+     */
+    private ConnectedPong(Recycler.Handle<ConnectedPong> handle)
+    {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a recycled message for incoming data. The message returns to the pool once it is released.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @return the message
+     */
+    public static ConnectedPong newInstance(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        final ConnectedPong result = RECYCLER.get();
+        result.init(buf, sender, receiver);
+        return result;
+    }
+
+    /**
+     * Returns a recycled message for outgoing traffic. The message returns to the pool once it is released.
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @return the message
+     */
+    public static ConnectedPong newInstance(InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        final ConnectedPong result = RECYCLER.get();
+        result.init(sender, receiver);
+        return result;
     }
 
     @Override
@@ -106,21 +161,41 @@ public class ConnectedPong extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        final ByteBuf result = Unpooled.buffer(1 + SIZE_TIME + SIZE_TIME);
-        result.order(ByteOrder.BIG_ENDIAN);
-        result.writeByte(ID);
-        writeTime(result, this.pingTime);
-        writeTime(result, this.pongTime);
-        return result;
+        return 1 + ConnectedPongCodec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        ConnectedPongCodec.encodeTo(this, target);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.pingTime = readTime(buf);
-        this.pongTime = readTime(buf);
+        ConnectedPongCodec.parse(this, buf);
+    }
+
+    @Override
+    protected void reset()
+    {
+        super.reset();
+        this.pingTime = 0;
+        this.pongTime = 0;
+    }
+
+    @Override
+    protected void deallocate()
+    {
+        super.deallocate();
+        if (this.handle != null)
+        {
+            this.reset();
+            this.handle.recycle(this);
+        }
     }
 
     @Override
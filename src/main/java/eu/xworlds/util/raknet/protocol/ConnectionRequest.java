@@ -18,7 +18,6 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -52,12 +51,18 @@ public class ConnectionRequest extends TargetedMessage
     /** the security proof (32 bytes) */
     private byte[] proof;
     
+    /** the proof offset in view mode */
+    private int proofOffset;
+    
     /** true for identity */
     private boolean doIdentity;
     
     /** identity */
     private byte[] identity;
     
+    /** the identity offset in view mode */
+    private int identityOffset;
+    
     /**
      * Constructor for incoming message.
      * @param buf message data
@@ -69,6 +74,18 @@ public class ConnectionRequest extends TargetedMessage
         super(buf, sender, receiver);
     }
 
+    /**
+     * Constructor for incoming message.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @param view {@code true} to read proof and identity on demand from the retained message data
+     */
+    public ConnectionRequest(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver, boolean view)
+    {
+        super(buf, sender, receiver, view);
+    }
+
     /**
      * Constructor for outgoing message.
      * @param sender message sender.
@@ -130,9 +147,26 @@ public class ConnectionRequest extends TargetedMessage
      */
     public byte[] getProof()
     {
+        if (this.proof == null && this.doSecurity && this.isView())
+        {
+            this.proof = this.viewBytes(this.proofOffset, 32);
+        }
         return this.proof;
     }
 
+    /**
+     * Returns the proof without copying it in view mode.
+     * @return the proof; only valid until this message is released
+     */
+    public ByteBuf getProofBuf()
+    {
+        if (this.proof == null && this.doSecurity && this.isView())
+        {
+            return this.viewSlice(this.proofOffset, 32);
+        }
+        return this.proof == null ? null : Unpooled.wrappedBuffer(this.proof);
+    }
+
     /**
      * @return the doIdentity
      */
@@ -146,8 +180,25 @@ public class ConnectionRequest extends TargetedMessage
      */
     public byte[] getIdentity()
     {
+        if (this.identity == null && this.doIdentity && this.isView())
+        {
+            this.identity = this.viewBytes(this.identityOffset, EASYHANDSHAKE_IDENTITY_BYTES);
+        }
         return this.identity;
     }
+
+    /**
+     * Returns the identity without copying it in view mode.
+     * @return the identity; only valid until this message is released
+     */
+    public ByteBuf getIdentityBuf()
+    {
+        if (this.identity == null && this.doIdentity && this.isView())
+        {
+            return this.viewSlice(this.identityOffset, EASYHANDSHAKE_IDENTITY_BYTES);
+        }
+        return this.identity == null ? null : Unpooled.wrappedBuffer(this.identity);
+    }
     
     /**
      * Sets doSecurity to false
@@ -196,7 +247,7 @@ public class ConnectionRequest extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
         int size = 1 + SIZE_GUID + SIZE_TIME + 1;
         if (this.doSecurity)
@@ -207,22 +258,54 @@ public class ConnectionRequest extends TargetedMessage
                 size += EASYHANDSHAKE_IDENTITY_BYTES;
             }
         }
-        final ByteBuf buf = Unpooled.buffer(size);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        writeGuid(buf, this.clientGuid);
-        writeTime(buf, this.time);
-        buf.writeBoolean(this.doSecurity);
+        return size;
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        writeGuid(target, this.clientGuid);
+        writeTime(target, this.time);
+        target.writeBoolean(this.doSecurity);
         if (this.doSecurity)
         {
-            buf.writeBytes(this.proof);
-            buf.writeBoolean(this.doIdentity);
+            target.writeBytes(this.getProof());
+            target.writeBoolean(this.doIdentity);
             if (this.doIdentity)
             {
-                buf.writeBytes(this.identity);
+                target.writeBytes(this.getIdentity());
+            }
+        }
+    }
+    
+    /**
+     * Checks if incoming data can be parsed without exceeding the buffer.
+     * @param buf message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message is complete
+     */
+    public static boolean isValid(ByteBuf buf)
+    {
+        final int index = buf.readerIndex();
+        final int readable = buf.readableBytes();
+        int size = SIZE_GUID + SIZE_TIME + 1;
+        if (readable < size)
+        {
+            return false;
+        }
+        if (buf.getBoolean(index + size - 1))
+        {
+            size += 32 + 1;
+            if (readable < size)
+            {
+                return false;
+            }
+            if (buf.getBoolean(index + size - 1))
+            {
+                size += EASYHANDSHAKE_IDENTITY_BYTES;
             }
         }
-        return buf;
+        return readable >= size;
     }
     
     @Override
@@ -233,13 +316,27 @@ public class ConnectionRequest extends TargetedMessage
         this.doSecurity = buf.readBoolean();
         if (this.doSecurity)
         {
-            this.proof = new byte[32]; // TODO have a constant value of the size
-            buf.readBytes(this.proof);
+            if (this.isView())
+            {
+                this.proofOffset = this.skipView(buf, 32);
+            }
+            else
+            {
+                this.proof = new byte[32]; // TODO have a constant value of the size
+                buf.readBytes(this.proof);
+            }
             this.doIdentity = buf.readBoolean();
             if (this.doIdentity)
             {
-                this.identity = new byte[EASYHANDSHAKE_IDENTITY_BYTES];
-                buf.readBytes(this.identity);
+                if (this.isView())
+                {
+                    this.identityOffset = this.skipView(buf, EASYHANDSHAKE_IDENTITY_BYTES);
+                }
+                else
+                {
+                    this.identity = new byte[EASYHANDSHAKE_IDENTITY_BYTES];
+                    buf.readBytes(this.identity);
+                }
             }
         }
     }
@@ -247,8 +344,8 @@ public class ConnectionRequest extends TargetedMessage
     @Override
     public String toString()
     {
-        return "ConnectionRequest [clientGuid=" + this.clientGuid + ", time=" + this.time + ", doSecurity=" + String.valueOf(this.doSecurity) + ", proof=" + tohex(this.proof) + ", doIdentity="   //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$//$NON-NLS-5$
-                + String.valueOf(this.doIdentity) + ", identity=" + tohex(this.identity) + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+        return "ConnectionRequest [clientGuid=" + this.clientGuid + ", time=" + this.time + ", doSecurity=" + String.valueOf(this.doSecurity) + ", proof=" + tohex(this.getProof()) + ", doIdentity="   //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$//$NON-NLS-5$
+                + String.valueOf(this.doIdentity) + ", identity=" + tohex(this.getIdentity()) + "]"; //$NON-NLS-1$ //$NON-NLS-2$
     }
     
 }
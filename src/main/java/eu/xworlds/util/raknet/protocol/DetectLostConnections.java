@@ -18,10 +18,9 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.util.Recycler;
 
 /**
  * Message "DetectLostConnections".
@@ -40,6 +39,19 @@ public class DetectLostConnections extends TargetedMessage
     /** the raknet message id */
     public static final byte ID = 0x04;
     
+    /** the pool of recycled messages */
+    private static final Recycler<DetectLostConnections> RECYCLER = new Recycler<DetectLostConnections>()
+    {
+        @Override
+        protected DetectLostConnections newObject(Recycler.Handle<DetectLostConnections> handle)
+        {
+            return new DetectLostConnections(handle);
+        }
+    };
+    
+    /** the recycler handle; {@code null} for messages not taken from the pool */
+    private final Recycler.Handle<DetectLostConnections> handle;
+    
     /**
      * Constructor for incoming message.
      * @param buf message data
@@ -49,6 +61,7 @@ public class DetectLostConnections extends TargetedMessage
     public DetectLostConnections(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
     {
         super(buf, sender, receiver);
+        this.handle = null;
     }
 
     /**
@@ -59,6 +72,43 @@ public class DetectLostConnections extends TargetedMessage
     public DetectLostConnections(InetSocketAddress sender, InetSocketAddress receiver)
     {
         super(sender, receiver);
+        this.handle = null;
+    }
+
+    /**
+     * Constructor for recycled messages.
+     * @param handle the recycler handle.
+     */
+    private DetectLostConnections(Recycler.Handle<DetectLostConnections> handle)
+    {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a recycled message for incoming data. The message returns to the pool once it is released.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @return the message
+     */
+    public static DetectLostConnections newInstance(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        final DetectLostConnections result = RECYCLER.get();
+        result.init(buf, sender, receiver);
+        return result;
+    }
+
+    /**
+     * Returns a recycled message for outgoing traffic. The message returns to the pool once it is released.
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @return the message
+     */
+    public static DetectLostConnections newInstance(InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        final DetectLostConnections result = RECYCLER.get();
+        result.init(sender, receiver);
+        return result;
     }
 
     @Override
@@ -68,12 +118,15 @@ public class DetectLostConnections extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        final ByteBuf buf = Unpooled.buffer(1);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        return buf;
+        return 1;
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
     }
     
     @Override
@@ -82,6 +135,17 @@ public class DetectLostConnections extends TargetedMessage
         // no additional data
     }
 
+    @Override
+    protected void deallocate()
+    {
+        super.deallocate();
+        if (this.handle != null)
+        {
+            this.reset();
+            this.handle.recycle(this);
+        }
+    }
+
     @Override
     public String toString()
     {
@@ -89,7 +89,13 @@ public class InvalidRaknetMessage extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
+    {
+        throw new IllegalStateException("Not allowed"); //$NON-NLS-1$
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
     {
         throw new IllegalStateException("Not allowed"); //$NON-NLS-1$
     }
@@ -97,7 +103,8 @@ public class InvalidRaknetMessage extends TargetedMessage
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.payload = buf.readBytes(Math.min(1500, buf.readableBytes())).array();
+        this.payload = new byte[Math.min(1500, buf.readableBytes())];
+        buf.readBytes(this.payload);
     }
 
     @Override
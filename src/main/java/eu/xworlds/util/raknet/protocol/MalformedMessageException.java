@@ -0,0 +1,49 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package eu.xworlds.util.raknet.protocol;
+
+/**
+ * Marker for malformed incoming messages.
+ * 
+ * <p>
+ * The instances are preallocated and do not carry a stack trace, so reporting a malformed message costs no more than reporting a valid one.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class MalformedMessageException extends RuntimeException
+{
+    
+    /** serial version uid */
+    private static final long                     serialVersionUID = 4279516042387135721L;
+    
+    /** the message content did not pass validation, for example it was truncated */
+    public static final MalformedMessageException INVALID_CONTENT  = new MalformedMessageException("invalid message content"); //$NON-NLS-1$
+    
+    /**
+     * Constructor.
+     * 
+     * @param message
+     *            the error message
+     */
+    private MalformedMessageException(String message)
+    {
+        super(message, null, false, false);
+    }
+    
+}
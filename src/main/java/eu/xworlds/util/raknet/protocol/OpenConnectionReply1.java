@@ -18,10 +18,16 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.Bool;
+import eu.xworlds.util.raknet.codec.Bytes;
+import eu.xworlds.util.raknet.codec.Guid;
+import eu.xworlds.util.raknet.codec.Int32;
+import eu.xworlds.util.raknet.codec.Magic;
+import eu.xworlds.util.raknet.codec.PresentIf;
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.UInt16;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "OpenConnectionReply1".
@@ -35,6 +41,7 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class OpenConnectionReply1 extends TargetedMessage
 {
     
@@ -42,22 +49,30 @@ public class OpenConnectionReply1 extends TargetedMessage
     public static final byte ID = 0x06;
     
     /** the magic */
-    private byte[] magic;
+    @Magic
+    byte[] magic;
     
     /** the server guid */
-    private long serverGuid;
+    @Guid
+    long serverGuid;
     
     /** true if the server has security */
-    private boolean hasSecurity;
+    @Bool
+    boolean hasSecurity;
     
     /** the security cookie */
-    private int securityCookie;
+    @Int32
+    @PresentIf("hasSecurity")
+    int securityCookie;
     
     /** the public key */
-    private byte[] publicKey;
+    @Bytes(EASYHANDSHAKE_PUBLIC_KEY_BYTES)
+    @PresentIf("hasSecurity")
+    byte[] publicKey;
     
     /** the mtu size (unsigned short) */
-    private int mtuSize;
+    @UInt16
+    int mtuSize;
     
     /**
      * Constructor for incoming message.
@@ -142,7 +157,7 @@ public class OpenConnectionReply1 extends TargetedMessage
      */
     public void setSecurity(int securityCookie, byte[] publicKey)
     {
-        if (this.publicKey == null || this.publicKey.length != EASYHANDSHAKE_PUBLIC_KEY_BYTES)
+        if (publicKey == null || publicKey.length != EASYHANDSHAKE_PUBLIC_KEY_BYTES)
         {
             throw new IllegalArgumentException("publicKey"); //$NON-NLS-1$
         }
@@ -184,42 +199,32 @@ public class OpenConnectionReply1 extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        int size = 1 + this.magic.length + SIZE_GUID + 1 + 2;
-        if (this.hasSecurity)
-        {
-            size += 4 + this.publicKey.length;
-        }
-        final ByteBuf result = Unpooled.buffer(size);
-        result.order(ByteOrder.BIG_ENDIAN);
-        result.writeByte(ID);
-        result.writeBytes(this.magic);
-        writeGuid(result, this.serverGuid);
-        result.writeBoolean(this.hasSecurity);
-        if (this.hasSecurity)
-        {
-            result.writeInt(this.securityCookie);
-            result.writeBytes(this.publicKey);
-        }
-        writeUnsignedShort(result, this.mtuSize);
-        return result;
+        return 1 + OpenConnectionReply1Codec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        OpenConnectionReply1Codec.encodeTo(this, target);
+    }
+    
+    /**
+     * Checks if incoming data can be parsed without exceeding the buffer.
+     * @param buf message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message is complete
+     */
+    public static boolean isValid(ByteBuf buf)
+    {
+        return OpenConnectionReply1Codec.isValid(buf);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.magic = new byte[MAGIC_BYTES];
-        buf.readBytes(this.magic);
-        this.serverGuid = readGuid(buf);
-        this.hasSecurity = buf.readBoolean();
-        if (this.hasSecurity)
-        {
-            this.securityCookie = buf.readInt();
-            this.publicKey = new byte[EASYHANDSHAKE_PUBLIC_KEY_BYTES];
-            buf.readBytes(this.publicKey);
-        }
-        this.mtuSize = buf.readUnsignedShort();
+        OpenConnectionReply1Codec.parse(this, buf);
     }
 
     @Override
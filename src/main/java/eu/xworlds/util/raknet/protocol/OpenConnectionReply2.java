@@ -18,10 +18,15 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.Bool;
+import eu.xworlds.util.raknet.codec.Bytes;
+import eu.xworlds.util.raknet.codec.Guid;
+import eu.xworlds.util.raknet.codec.Magic;
+import eu.xworlds.util.raknet.codec.PresentIf;
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.UInt16;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "OpenConnectionReply2".
@@ -36,6 +41,7 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class OpenConnectionReply2 extends TargetedMessage
 {
     
@@ -43,22 +49,29 @@ public class OpenConnectionReply2 extends TargetedMessage
     public static final byte ID = 0x08;
     
     /** the magic */
-    private byte[]           magic;
+    @Magic
+    byte[] magic;
     
     /** the server id */
-    private long             serverGuid;
+    @Guid
+    long serverGuid;
     
     /** the server port */
-    private int              port;
+    @UInt16
+    int port;
     
     /** the mtu size */
-    private int              mtuSize;
+    @UInt16
+    int mtuSize;
     
     /** do security flag */
-    private boolean          doSecurity;
+    @Bool
+    boolean doSecurity;
     
     /** the security answer */
-    private byte[]           securityAnswer;
+    @Bytes(EASYHANDSHAKE_ANSWER_BYTES)
+    @PresentIf("doSecurity")
+    byte[] securityAnswer;
     
     /**
      * Constructor for incoming message.
@@ -187,6 +200,7 @@ public class OpenConnectionReply2 extends TargetedMessage
             throw new IllegalArgumentException("answer"); //$NON-NLS-1$
         }
         this.doSecurity = true;
+        this.securityAnswer = answer;
     }
     
     /**
@@ -204,42 +218,32 @@ public class OpenConnectionReply2 extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        int size = 1 + this.magic.length + SIZE_GUID + 2 + 2 + 1;
-        if (this.doSecurity)
-        {
-            size += this.securityAnswer.length;
-        }
-        final ByteBuf buf = Unpooled.buffer(size);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        buf.writeBytes(this.magic);
-        writeGuid(buf, this.serverGuid);
-        writeUnsignedShort(buf, this.port);
-        writeUnsignedShort(buf, this.mtuSize);
-        buf.writeBoolean(this.doSecurity);
-        if (this.doSecurity)
-        {
-            buf.writeBytes(this.securityAnswer);
-        }
-        return buf;
+        return 1 + OpenConnectionReply2Codec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        OpenConnectionReply2Codec.encodeTo(this, target);
+    }
+    
+    /**
+     * Checks if incoming data can be parsed without exceeding the buffer.
+     * @param buf message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message is complete
+     */
+    public static boolean isValid(ByteBuf buf)
+    {
+        return OpenConnectionReply2Codec.isValid(buf);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.magic = new byte[MAGIC_BYTES];
-        buf.readBytes(this.magic);
-        this.serverGuid = readGuid(buf);
-        this.port = buf.readUnsignedShort();
-        this.mtuSize = buf.readUnsignedShort();
-        this.doSecurity = buf.readBoolean();
-        if (this.doSecurity)
-        {
-            this.securityAnswer = new byte[EASYHANDSHAKE_ANSWER_BYTES];
-            buf.readBytes(this.securityAnswer);
-        }
+        OpenConnectionReply2Codec.parse(this, buf);
     }
 
     @Override
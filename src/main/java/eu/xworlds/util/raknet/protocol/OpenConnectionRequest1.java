@@ -18,9 +18,6 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
-
-import org.apache.commons.codec.binary.Hex;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -46,12 +43,21 @@ public class OpenConnectionRequest1 extends TargetedMessage
     /** the magic */
     private byte[] magic;
     
+    /** the magic offset in view mode */
+    private int magicOffset;
+    
     /** the raknet protocol version */
     private byte procotolVersion;
     
     /** the mtu payload */
     private byte[] mtuPayload;
     
+    /** the mtu payload offset in view mode */
+    private int mtuPayloadOffset;
+    
+    /** the mtu payload length in view mode */
+    private int mtuPayloadLength;
+    
     /**
      * Constructor for incoming message.
      * @param buf message data
@@ -63,6 +69,18 @@ public class OpenConnectionRequest1 extends TargetedMessage
         super(buf, sender, receiver);
     }
 
+    /**
+     * Constructor for incoming message.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @param view {@code true} to read magic and mtu payload on demand from the retained message data
+     */
+    public OpenConnectionRequest1(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver, boolean view)
+    {
+        super(buf, sender, receiver, view);
+    }
+
     /**
      * Constructor for outgoing message.
      * @param sender message sender.
@@ -78,9 +96,26 @@ public class OpenConnectionRequest1 extends TargetedMessage
      */
     public byte[] getMagic()
     {
+        if (this.magic == null && this.isView())
+        {
+            this.magic = this.viewBytes(this.magicOffset, MAGIC_BYTES);
+        }
         return this.magic;
     }
 
+    /**
+     * Returns the magic without copying it in view mode.
+     * @return the magic; only valid until this message is released
+     */
+    public ByteBuf getMagicBuf()
+    {
+        if (this.magic == null && this.isView())
+        {
+            return this.viewSlice(this.magicOffset, MAGIC_BYTES);
+        }
+        return this.magic == null ? null : Unpooled.wrappedBuffer(this.magic);
+    }
+
     /**
      * @param magic the magic to set
      */
@@ -110,9 +145,26 @@ public class OpenConnectionRequest1 extends TargetedMessage
      */
     public byte[] getMtuPayload()
     {
+        if (this.mtuPayload == null && this.isView())
+        {
+            this.mtuPayload = this.viewBytes(this.mtuPayloadOffset, this.mtuPayloadLength);
+        }
         return this.mtuPayload;
     }
 
+    /**
+     * Returns the length of the mtu payload without copying it in view mode.
+     * @return the mtu payload length
+     */
+    public int getMtuPayloadLength()
+    {
+        if (this.mtuPayload == null)
+        {
+            return this.mtuPayloadLength;
+        }
+        return this.mtuPayload.length;
+    }
+
     /**
      * @param mtuPayload the mtuPayload to set
      */
@@ -128,30 +180,44 @@ public class OpenConnectionRequest1 extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
+    {
+        return 1 + this.getMagic().length + 1 + this.getMtuPayloadLength();
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
     {
-        final ByteBuf result = Unpooled.buffer(1 + 16 + this.magic.length + 1 + this.mtuPayload.length);
-        result.order(ByteOrder.BIG_ENDIAN);
-        result.writeByte(ID);
-        result.writeBytes(this.magic);
-        result.writeByte(this.procotolVersion);
-        result.writeBytes(this.mtuPayload);
-        return result;
+        target.writeByte(ID);
+        target.writeBytes(this.getMagic());
+        target.writeByte(this.procotolVersion);
+        target.writeBytes(this.getMtuPayload());
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.magic = new byte[MAGIC_BYTES];
-        buf.readBytes(this.magic);
-        this.procotolVersion = buf.readByte();
-        this.mtuPayload = buf.readBytes(buf.readableBytes()).array();
+        if (this.isView())
+        {
+            this.magicOffset = this.skipView(buf, MAGIC_BYTES);
+            this.procotolVersion = buf.readByte();
+            this.mtuPayloadLength = buf.readableBytes();
+            this.mtuPayloadOffset = this.skipView(buf, this.mtuPayloadLength);
+        }
+        else
+        {
+            this.magic = new byte[MAGIC_BYTES];
+            buf.readBytes(this.magic);
+            this.procotolVersion = buf.readByte();
+            this.mtuPayload = new byte[buf.readableBytes()];
+            buf.readBytes(this.mtuPayload);
+        }
     }
 
     @Override
     public String toString()
     {
-        return "OpenConnectionRequest1 [magic=" + tohex(this.magic) + ", procotolVersion=" + this.procotolVersion + ", mtuPayload=" + Hex.encodeHexString(this.mtuPayload) + "]";  //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        return "OpenConnectionRequest1 [magic=" + tohex(this.getMagic()) + ", procotolVersion=" + this.procotolVersion + ", mtuPayload=" + tohex(this.getMtuPayload()) + "]";  //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
     }
     
 }
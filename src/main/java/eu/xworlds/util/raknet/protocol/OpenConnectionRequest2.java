@@ -18,7 +18,6 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -34,6 +33,11 @@ import io.netty.buffer.Unpooled;
  * Connection slot allocated if cookie is valid, server is not full, GUID and IP not already in use.
  * </p>
  * 
+ * <p>
+ * Incoming messages do not carry the security flag of the server; the security block is detected by the message length. Without, with cookie and with cookie
+ * and challenge the lengths differ for both address versions.
+ * </p>
+ * 
  * @author mepeisen
  */
 public class OpenConnectionRequest2 extends TargetedMessage
@@ -45,6 +49,9 @@ public class OpenConnectionRequest2 extends TargetedMessage
     /** the magic */
     private byte[] magic;
     
+    /** the magic offset in view mode */
+    private int magicOffset;
+    
     /** true if the client uses security */
     private boolean useSecurity;
     
@@ -57,8 +64,11 @@ public class OpenConnectionRequest2 extends TargetedMessage
     /** the client challenge */
     private byte[] clientChallenge;
     
+    /** the client challenge offset in view mode */
+    private int clientChallengeOffset;
+    
     /** the binding address */
-    private long bindingAddress;
+    private SystemAddress bindingAddress;
     
     /** the mtu size */
     private int mtuSize;
@@ -77,6 +87,18 @@ public class OpenConnectionRequest2 extends TargetedMessage
         super(buf, sender, receiver);
     }
 
+    /**
+     * Constructor for incoming message.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @param view {@code true} to read magic and client challenge on demand from the retained message data
+     */
+    public OpenConnectionRequest2(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver, boolean view)
+    {
+        super(buf, sender, receiver, view);
+    }
+
     /**
      * Constructor for outgoing message.
      * @param sender message sender.
@@ -98,9 +120,26 @@ public class OpenConnectionRequest2 extends TargetedMessage
      */
     public byte[] getMagic()
     {
+        if (this.magic == null && this.isView())
+        {
+            this.magic = this.viewBytes(this.magicOffset, MAGIC_BYTES);
+        }
         return this.magic;
     }
 
+    /**
+     * Returns the magic without copying it in view mode.
+     * @return the magic; only valid until this message is released
+     */
+    public ByteBuf getMagicBuf()
+    {
+        if (this.magic == null && this.isView())
+        {
+            return this.viewSlice(this.magicOffset, MAGIC_BYTES);
+        }
+        return this.magic == null ? null : Unpooled.wrappedBuffer(this.magic);
+    }
+
     /**
      * @param magic the magic to set
      */
@@ -157,9 +196,26 @@ public class OpenConnectionRequest2 extends TargetedMessage
      */
     public byte[] getClientChallenge()
     {
+        if (this.clientChallenge == null && this.clientWroteChallenge && this.isView())
+        {
+            this.clientChallenge = this.viewBytes(this.clientChallengeOffset, EASYHANDSHAKE_CHALLENGE_BYTES);
+        }
         return this.clientChallenge;
     }
 
+    /**
+     * Returns the client challenge without copying it in view mode.
+     * @return the client challenge; only valid until this message is released
+     */
+    public ByteBuf getClientChallengeBuf()
+    {
+        if (this.clientChallenge == null && this.clientWroteChallenge && this.isView())
+        {
+            return this.viewSlice(this.clientChallengeOffset, EASYHANDSHAKE_CHALLENGE_BYTES);
+        }
+        return this.clientChallenge == null ? null : Unpooled.wrappedBuffer(this.clientChallenge);
+    }
+
     /**
      * Sets security flag to true and sets the cookie and clientChallenge
      * @param cookie the cookie to set
@@ -181,7 +237,7 @@ public class OpenConnectionRequest2 extends TargetedMessage
     /**
      * @return the bindingAddress
      */
-    public long getBindingAddress()
+    public SystemAddress getBindingAddress()
     {
         return this.bindingAddress;
     }
@@ -189,7 +245,7 @@ public class OpenConnectionRequest2 extends TargetedMessage
     /**
      * @param bindingAddress the bindingAddress to set
      */
-    public void setBindingAddress(long bindingAddress)
+    public void setBindingAddress(SystemAddress bindingAddress)
     {
         this.bindingAddress = bindingAddress;
     }
@@ -227,53 +283,117 @@ public class OpenConnectionRequest2 extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        int size = 1 + this.magic.length + SIZE_IPV4_ADDRESS + 2 + SIZE_GUID;
+        int size = 1 + this.getMagic().length + this.bindingAddress.encodedSize() + 2 + SIZE_GUID;
         if (this.useSecurity)
         {
             size += 4 + 1;
             if (this.clientWroteChallenge)
             {
-                size += this.clientChallenge.length;
+                size += this.getClientChallenge().length;
             }
         }
-        final ByteBuf buf = Unpooled.buffer(size);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        buf.writeBytes(this.magic);
+        return size;
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        target.writeBytes(this.getMagic());
         if (this.useSecurity)
         {
-            buf.writeInt(this.cookie);
-            buf.writeBoolean(this.clientWroteChallenge);
+            target.writeInt(this.cookie);
+            target.writeBoolean(this.clientWroteChallenge);
             if (this.clientWroteChallenge)
             {
-                buf.writeBytes(this.clientChallenge);
+                target.writeBytes(this.getClientChallenge());
             }
         }
-        writeIpv4Address(buf, this.bindingAddress);
-        writeUnsignedShort(buf, this.mtuSize);
-        writeGuid(buf, this.guid);
-        return buf;
+        this.bindingAddress.encodeTo(target);
+        writeUnsignedShort(target, this.mtuSize);
+        writeGuid(target, this.guid);
+    }
+    
+    /**
+     * Checks if incoming data can be parsed without exceeding the buffer.
+     * @param buf message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message is complete
+     */
+    public static boolean isValid(ByteBuf buf)
+    {
+        final int readable = buf.readableBytes();
+        return readable > MAGIC_BYTES && securitySize(buf, buf.readerIndex() + MAGIC_BYTES, readable - MAGIC_BYTES) >= 0;
+    }
+    
+    /**
+     * Detects the security block of incoming data by its length.
+     * @param buf message data
+     * @param index index of the first byte behind the magic
+     * @param length number of bytes behind the magic
+     * @return size of the security block; 0 if there is none; -1 if the message is incomplete
+     */
+    private static int securitySize(ByteBuf buf, int index, int length)
+    {
+        // the client challenge flag behind the cookie tells both security blocks apart
+        final int challenged = 4 + 1 + EASYHANDSHAKE_CHALLENGE_BYTES;
+        if (length > challenged && buf.getBoolean(index + 4) && isComplete(buf, index + challenged, length - challenged))
+        {
+            return challenged;
+        }
+        if (length > 4 + 1 && !buf.getBoolean(index + 4) && isComplete(buf, index + 4 + 1, length - 4 - 1))
+        {
+            return 4 + 1;
+        }
+        final int addressSize = SystemAddress.sizeAt(buf, index);
+        return addressSize > 0 && length >= addressSize + 2 + SIZE_GUID ? 0 : -1;
+    }
+    
+    /**
+     * Checks if incoming data exactly holds binding address, mtu size and guid.
+     * @param buf message data
+     * @param index index of the binding address
+     * @param length number of bytes from the binding address
+     * @return {@code true} if the remaining data matches
+     */
+    private static boolean isComplete(ByteBuf buf, int index, int length)
+    {
+        final int addressSize = SystemAddress.sizeAt(buf, index);
+        return addressSize > 0 && length == addressSize + 2 + SIZE_GUID;
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.magic = new byte[MAGIC_BYTES];
-        buf.readBytes(this.magic);
-        // TODO how to get the security flag?
+        if (this.isView())
+        {
+            this.magicOffset = this.skipView(buf, MAGIC_BYTES);
+        }
+        else
+        {
+            this.magic = new byte[MAGIC_BYTES];
+            buf.readBytes(this.magic);
+        }
+        this.useSecurity = securitySize(buf, buf.readerIndex(), buf.readableBytes()) > 0;
         if (this.useSecurity)
         {
             this.cookie = buf.readInt();
             this.clientWroteChallenge = buf.readBoolean();
             if (this.clientWroteChallenge)
             {
-                this.clientChallenge = new byte[EASYHANDSHAKE_CHALLENGE_BYTES];
-                buf.readBytes(this.clientChallenge);
+                if (this.isView())
+                {
+                    this.clientChallengeOffset = this.skipView(buf, EASYHANDSHAKE_CHALLENGE_BYTES);
+                }
+                else
+                {
+                    this.clientChallenge = new byte[EASYHANDSHAKE_CHALLENGE_BYTES];
+                    buf.readBytes(this.clientChallenge);
+                }
             }
         }
-        this.bindingAddress = readIPv4Address(buf);
+        this.bindingAddress = SystemAddress.read(buf);
         this.mtuSize = buf.readUnsignedShort();
         this.guid = readGuid(buf);
     }
@@ -281,8 +401,8 @@ public class OpenConnectionRequest2 extends TargetedMessage
     @Override
     public String toString()
     {
-        return "OpenConnectionRequest2 [magic=" + tohex(this.magic) + ", useSecurity=" + String.valueOf(this.useSecurity) + ", cookie=" + this.cookie + ", clientWroteChallenge=" + String.valueOf(this.clientWroteChallenge) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-                + ", clientChallenge=" + tohex(this.clientChallenge) + ", bindingAddress=" + this.bindingAddress + ", mtuSize=" + this.mtuSize + ", guid=" + this.guid + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        return "OpenConnectionRequest2 [magic=" + tohex(this.getMagic()) + ", useSecurity=" + String.valueOf(this.useSecurity) + ", cookie=" + this.cookie + ", clientWroteChallenge=" + String.valueOf(this.clientWroteChallenge) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+                + ", clientChallenge=" + tohex(this.getClientChallenge()) + ", bindingAddress=" + this.bindingAddress + ", mtuSize=" + this.mtuSize + ", guid=" + this.guid + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
     }
     
 }
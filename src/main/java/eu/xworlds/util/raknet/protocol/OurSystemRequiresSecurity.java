@@ -18,10 +18,8 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "OurSystemRequiresSecurity".
@@ -68,12 +66,15 @@ public class OurSystemRequiresSecurity extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        final ByteBuf buf = Unpooled.buffer(1);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        return buf;
+        return 1;
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
     }
     
     @Override
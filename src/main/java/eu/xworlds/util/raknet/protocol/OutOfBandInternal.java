@@ -18,7 +18,6 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -47,9 +46,18 @@ public class OutOfBandInternal extends TargetedMessage
     /** the magic */
     private byte[] magic;
     
+    /** the magic offset in view mode */
+    private int magicOffset;
+    
     /** the out of bands extra data */
     private byte[] oobData;
     
+    /** the out of bands extra data offset in view mode */
+    private int oobDataOffset;
+    
+    /** the out of bands extra data length in view mode */
+    private int oobDataLength;
+    
     /**
      * Constructor for incoming message.
      * @param buf message data
@@ -61,6 +69,18 @@ public class OutOfBandInternal extends TargetedMessage
         super(buf, sender, receiver);
     }
 
+    /**
+     * Constructor for incoming message.
+     * @param buf message data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     * @param view {@code true} to read magic and out of band data on demand from the retained message data
+     */
+    public OutOfBandInternal(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver, boolean view)
+    {
+        super(buf, sender, receiver, view);
+    }
+
     /**
      * Constructor for outgoing message.
      * @param sender message sender.
@@ -92,9 +112,26 @@ public class OutOfBandInternal extends TargetedMessage
      */
     public byte[] getMagic()
     {
+        if (this.magic == null && this.isView())
+        {
+            this.magic = this.viewBytes(this.magicOffset, MAGIC_BYTES);
+        }
         return this.magic;
     }
 
+    /**
+     * Returns the magic without copying it in view mode.
+     * @return the magic; only valid until this message is released
+     */
+    public ByteBuf getMagicBuf()
+    {
+        if (this.magic == null && this.isView())
+        {
+            return this.viewSlice(this.magicOffset, MAGIC_BYTES);
+        }
+        return this.magic == null ? null : Unpooled.wrappedBuffer(this.magic);
+    }
+
     /**
      * @param magic the magic to set
      */
@@ -108,9 +145,26 @@ public class OutOfBandInternal extends TargetedMessage
      */
     public byte[] getOobData()
     {
+        if (this.oobData == null && this.oobDataLength > 0 && this.isView())
+        {
+            this.oobData = this.viewBytes(this.oobDataOffset, this.oobDataLength);
+        }
         return this.oobData;
     }
 
+    /**
+     * Returns the out of band data without copying it in view mode.
+     * @return the oobData; only valid until this message is released
+     */
+    public ByteBuf getOobDataBuf()
+    {
+        if (this.oobData == null && this.oobDataLength > 0 && this.isView())
+        {
+            return this.viewSlice(this.oobDataOffset, this.oobDataLength);
+        }
+        return this.oobData == null ? null : Unpooled.wrappedBuffer(this.oobData);
+    }
+
     /**
      * @param oobData the oobData to set
      */
@@ -126,41 +180,53 @@ public class OutOfBandInternal extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        int size = 1 + SIZE_GUID + this.magic.length;
-        if (this.oobData != null)
+        int size = 1 + SIZE_GUID + this.getMagic().length;
+        if (this.getOobData() != null)
         {
-            size += this.oobData.length;
+            size += this.getOobData().length;
         }
-        final ByteBuf buf = Unpooled.buffer(size);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        writeGuid(buf, this.guid);
-        buf.writeBytes(this.magic);
-        if (this.oobData != null)
+        return size;
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        writeGuid(target, this.guid);
+        target.writeBytes(this.getMagic());
+        if (this.getOobData() != null)
         {
-            buf.writeBytes(this.oobData);
+            target.writeBytes(this.getOobData());
         }
-        return buf;
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
         this.guid = readGuid(buf);
-        this.magic = new byte[MAGIC_BYTES];
-        buf.readBytes(this.magic);
-        if (buf.readableBytes() > 0)
+        if (this.isView())
+        {
+            this.magicOffset = this.skipView(buf, MAGIC_BYTES);
+            this.oobDataLength = buf.readableBytes();
+            this.oobDataOffset = this.skipView(buf, this.oobDataLength);
+        }
+        else
         {
-            this.oobData = buf.readBytes(buf.readableBytes()).array();
+            this.magic = new byte[MAGIC_BYTES];
+            buf.readBytes(this.magic);
+            if (buf.readableBytes() > 0)
+            {
+                this.oobData = buf.readBytes(buf.readableBytes()).array();
+            }
         }
     }
 
     @Override
     public String toString()
     {
-        return "OutOfBandInternal [guid=" + this.guid + ", magic=" + tohex(this.magic) + ", oobData=" + tohex(this.oobData) + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        return "OutOfBandInternal [guid=" + this.guid + ", magic=" + tohex(this.getMagic()) + ", oobData=" + tohex(this.getOobData()) + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
     }
     
 }
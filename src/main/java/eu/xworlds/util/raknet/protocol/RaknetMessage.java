@@ -18,6 +18,8 @@
 package eu.xworlds.util.raknet.protocol;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 
 /**
  * Base interface for raknet messages.
@@ -34,9 +36,21 @@ public interface RaknetMessage
             (byte)0xFD,(byte)0xFD,(byte)0xFD,(byte)0xFD,
             0x12,0x34,0x56,0x78};
     
+    /** the first 8 bytes of the magic as big endian long */
+    long OFFLINE_MESSAGE_DATA_ID_HIGH = 0x00FFFF00FEFEFEFEL;
+    
+    /** the last 8 bytes of the magic as big endian long */
+    long OFFLINE_MESSAGE_DATA_ID_LOW = 0xFDFDFDFD12345678L;
+    
     /** the magic size */
     int MAGIC_BYTES = 16;
     
+    /** the maximum mtu size */
+    int MAXIMUM_MTU_SIZE = 1492;
+    
+    /** the minimum mtu size */
+    int MINIMUM_MTU_SIZE = 400;
+    
     /** constant for easy handshake */
     int EASYHANDSHAKE_BITS = 256;
     /** constant for easy handshake */
@@ -61,11 +75,53 @@ public interface RaknetMessage
      */
     byte getId();
         
+    /**
+     * Returns the number of bytes written by {@link #encodeTo(ByteBuf)}.
+     * 
+     * @return encoded size in bytes
+     */
+    int encodedSize();
+    
+    /**
+     * Encodes this message into given buffer.
+     * 
+     * <p>
+     * Several messages may be encoded into the same buffer; the message is written at the current writer index.
+     * </p>
+     * 
+     * @param target
+     *            the target buffer
+     */
+    void encodeTo(ByteBuf target);
+    
     /**
      * Encodes this messge to byte buf
      * 
      * @return encoded messge
      */
-    ByteBuf encode();
+    default ByteBuf encode()
+    {
+        final ByteBuf result = Unpooled.buffer(this.encodedSize());
+        this.encodeTo(result);
+        return result;
+    }
+    
+    /**
+     * Encodes this message to a buffer taken from given allocator.
+     * 
+     * <p>
+     * The buffer is allocated with {@link ByteBufAllocator#ioBuffer(int)}, so a pooled allocator returns pooled direct memory that can be written to the socket without copying.
+     * </p>
+     * 
+     * @param alloc
+     *            the buffer allocator
+     * @return encoded message; the caller must release it
+     */
+    default ByteBuf encode(ByteBufAllocator alloc)
+    {
+        final ByteBuf result = alloc.ioBuffer(this.encodedSize());
+        this.encodeTo(result);
+        return result;
+    }
     
 }
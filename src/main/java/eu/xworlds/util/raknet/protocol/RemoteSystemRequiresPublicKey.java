@@ -18,10 +18,8 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "RemoteSystemRequiresPublicKey".
@@ -53,6 +51,9 @@ public class RemoteSystemRequiresPublicKey extends TargetedMessage
         ClientIdentityInvalid
     }
     
+    /** the known error types */
+    private static final ErrorType[] ERROR_TYPES = ErrorType.values();
+    
     /** the error type */
     private ErrorType error;
     
@@ -100,19 +101,37 @@ public class RemoteSystemRequiresPublicKey extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
+    {
+        return 1 + 1;
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        target.writeByte(this.error.ordinal());
+    }
+    
+    /**
+     * Checks if incoming data can be parsed without exceeding the buffer.
+     * @param buf message data; the reader index is positioned behind the message id
+     * @return {@code true} if the message is complete
+     */
+    public static boolean isValid(ByteBuf buf)
     {
-        final ByteBuf buf = Unpooled.buffer(1 + 1);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        buf.writeByte(this.error.ordinal());
-        return buf;
+        if (!buf.isReadable())
+        {
+            return false;
+        }
+        final byte error = buf.getByte(buf.readerIndex());
+        return error >= 0 && error < ERROR_TYPES.length;
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.error = ErrorType.values()[buf.readByte()];
+        this.error = ERROR_TYPES[buf.readByte()];
     }
 
     @Override
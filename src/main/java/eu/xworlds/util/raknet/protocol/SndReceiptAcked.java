@@ -18,10 +18,10 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.UInt32;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "SndReceiptAcked".
@@ -38,6 +38,7 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class SndReceiptAcked extends TargetedMessage
 {
     
@@ -45,7 +46,8 @@ public class SndReceiptAcked extends TargetedMessage
     public static final byte ID = 0x0E;
     
     /** the serial */
-    private long serial;
+    @UInt32
+    long serial;
     
     /**
      * Constructor for incoming message.
@@ -91,19 +93,22 @@ public class SndReceiptAcked extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        final ByteBuf buf = Unpooled.buffer(1 + 4);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        writeUnsignedInt(buf, this.serial);
-        return buf;
+        return 1 + SndReceiptAckedCodec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        SndReceiptAckedCodec.encodeTo(this, target);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.serial = buf.readUnsignedInt();
+        SndReceiptAckedCodec.parse(this, buf);
     }
 
     @Override
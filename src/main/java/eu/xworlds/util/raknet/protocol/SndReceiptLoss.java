@@ -18,10 +18,10 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.UInt32;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "SndReceiptLoss".
@@ -39,6 +39,7 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class SndReceiptLoss extends TargetedMessage
 {
     
@@ -46,7 +47,8 @@ public class SndReceiptLoss extends TargetedMessage
     public static final byte ID = 0x0F;
     
     /** the serial */
-    private long serial;
+    @UInt32
+    long serial;
     
     /**
      * Constructor for incoming message.
@@ -92,19 +94,22 @@ public class SndReceiptLoss extends TargetedMessage
     }
 
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-        final ByteBuf buf = Unpooled.buffer(1 + 4);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        buf.writeByte(ID);
-        writeUnsignedInt(buf, this.serial);
-        return buf;
+        return 1 + SndReceiptLossCodec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        SndReceiptLossCodec.encodeTo(this, target);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.serial = buf.readUnsignedInt();
+        SndReceiptLossCodec.parse(this, buf);
     }
 
     @Override
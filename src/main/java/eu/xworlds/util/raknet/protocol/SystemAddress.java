@@ -0,0 +1,308 @@
+/*
+    This file is part of "xWorlds utilities".
+
+    "xWorlds utilities" is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    "xWorlds utilities" is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with "nukkit xWorlds plugin". If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package eu.xworlds.util.raknet.protocol;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A raknet system address together with its encoded form.
+ * 
+ * <p>
+ * IPv4 addresses are encoded as version byte (4), the inverted address bytes and the port (7 bytes). IPv6 addresses are encoded as version byte (6) followed
+ * by a sockaddr_in6 structure: family (little endian), port, flow info, address and scope id (little endian) (29 bytes). Family and scope id are in the
+ * host byte order of the little endian raknet reference platforms; port and flow info are in network byte order.
+ * </p>
+ * 
+ * <p>
+ * The encoded form is computed once; reuse instances (for example {@link eu.xworlds.util.raknet.RaknetSession#getRemoteAddress()}) to avoid encoding the same
+ * address for each message.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class SystemAddress
+{
+    
+    /** the encoded size of ipv4 addresses */
+    public static final int   SIZE_IPV4       = 1 + 4 + 2;
+    
+    /** the encoded size of ipv6 addresses */
+    public static final int   SIZE_IPV6       = 1 + 2 + 2 + 4 + 16 + 4;
+    
+    /** the address family written for ipv6 addresses (AF_INET6 as used by the raknet windows builds) */
+    private static final int  AF_INET6        = 23;
+    
+    /** the socket address */
+    private final InetSocketAddress address;
+    
+    /** the encoded address */
+    private final byte[]            encoded;
+    
+    /**
+     * Constructor.
+     * 
+     * @param address
+     *            the socket address
+     * @param encoded
+     *            the encoded address
+     */
+    private SystemAddress(InetSocketAddress address, byte[] encoded)
+    {
+        this.address = address;
+        this.encoded = encoded;
+    }
+    
+    /**
+     * Normalizes IPv4-mapped IPv6 addresses (::ffff:a.b.c.d) to plain IPv4 addresses.
+     * 
+     * <p>
+     * The JDK and the netty transports already report IPv4 clients of dual-stack sockets as {@link Inet4Address}; only {@link Inet6Address} values built
+     * by hand (for example by {@link Inet6Address#getByAddress(String, byte[], int)}) keep the mapped form.
+     * </p>
+     * 
+     * @param address
+     *            the socket address
+     * @return IPv4 socket address for mapped addresses; the given address otherwise
+     */
+    public static InetSocketAddress normalize(InetSocketAddress address)
+    {
+        final InetAddress inet = address.getAddress();
+        if (!(inet instanceof Inet6Address))
+        {
+            return address;
+        }
+        final byte[] raw = inet.getAddress();
+        for (int i = 0; i < 10; i++)
+        {
+            if (raw[i] != 0)
+            {
+                return address;
+            }
+        }
+        if (raw[10] != (byte) 0xFF || raw[11] != (byte) 0xFF)
+        {
+            return address;
+        }
+        try
+        {
+            return new InetSocketAddress(Inet4Address.getByAddress(new byte[] { raw[12], raw[13], raw[14], raw[15] }), address.getPort());
+        }
+        catch (UnknownHostException ex)
+        {
+            // cannot happen for 4 byte addresses
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Creates a system address and encodes it.
+     * 
+     * @param address
+     *            the socket address; must be resolved
+     * @return system address
+     * @throws IllegalArgumentException
+     *             thrown if the address is unresolved
+     */
+    public static SystemAddress of(InetSocketAddress address)
+    {
+        final InetSocketAddress normalized = normalize(address);
+        final InetAddress inet = normalized.getAddress();
+        if (inet == null)
+        {
+            throw new IllegalArgumentException("unresolved address " + address); //$NON-NLS-1$
+        }
+        final byte[] raw = inet.getAddress();
+        final int port = normalized.getPort();
+        final byte[] result;
+        if (raw.length == 4)
+        {
+            result = new byte[SIZE_IPV4];
+            result[0] = 4;
+            result[1] = (byte) ~raw[0];
+            result[2] = (byte) ~raw[1];
+            result[3] = (byte) ~raw[2];
+            result[4] = (byte) ~raw[3];
+            result[5] = (byte) (port >> 8);
+            result[6] = (byte) port;
+        }
+        else
+        {
+            final int scopeId = inet instanceof Inet6Address ? ((Inet6Address) inet).getScopeId() : 0;
+            result = new byte[SIZE_IPV6];
+            result[0] = 6;
+            result[1] = (byte) AF_INET6;
+            result[2] = (byte) (AF_INET6 >> 8);
+            result[3] = (byte) (port >> 8);
+            result[4] = (byte) port;
+            // flow info (bytes 5 to 8) is always zero
+            System.arraycopy(raw, 0, result, 9, 16);
+            // host byte order like the family
+            result[25] = (byte) scopeId;
+            result[26] = (byte) (scopeId >> 8);
+            result[27] = (byte) (scopeId >> 16);
+            result[28] = (byte) (scopeId >> 24);
+        }
+        return new SystemAddress(normalized, result);
+    }
+    
+    /**
+     * Returns the encoded size of the address starting at given index.
+     * 
+     * @param buf
+     *            the source buffer; the reader index is not modified
+     * @param index
+     *            index of the version byte
+     * @return encoded size or -1 if the version is unknown
+     */
+    public static int sizeAt(ByteBuf buf, int index)
+    {
+        switch (buf.getByte(index))
+        {
+            case 4:
+                return SIZE_IPV4;
+            case 6:
+                return SIZE_IPV6;
+            default:
+                return -1;
+        }
+    }
+    
+    /**
+     * Reads a system address.
+     * 
+     * @param buf
+     *            source buffer
+     * @return system address
+     * @throws MalformedMessageException
+     *             thrown if the address version is unknown
+     */
+    public static SystemAddress read(ByteBuf buf)
+    {
+        final int start = buf.readerIndex();
+        final byte version = buf.readByte();
+        final byte[] raw;
+        final int port;
+        int scopeId = 0;
+        if (version == 4)
+        {
+            final int inverted = ~buf.readInt();
+            raw = new byte[] { (byte) (inverted >> 24), (byte) (inverted >> 16), (byte) (inverted >> 8), (byte) inverted };
+            port = buf.readUnsignedShort();
+        }
+        else if (version == 6)
+        {
+            buf.skipBytes(2); // family
+            port = buf.readUnsignedShort();
+            buf.skipBytes(4); // flow info
+            raw = new byte[16];
+            buf.readBytes(raw);
+            scopeId = buf.readIntLE();
+        }
+        else
+        {
+            throw MalformedMessageException.INVALID_CONTENT;
+        }
+        final byte[] encoded = new byte[buf.readerIndex() - start];
+        buf.getBytes(start, encoded);
+        try
+        {
+            final InetAddress inet = version == 4 || scopeId == 0 ? InetAddress.getByAddress(raw) : Inet6Address.getByAddress(null, raw, scopeId);
+            return new SystemAddress(new InetSocketAddress(inet, port), encoded);
+        }
+        catch (UnknownHostException ex)
+        {
+            // cannot happen; the address length is always valid
+            throw MalformedMessageException.INVALID_CONTENT;
+        }
+    }
+    
+    /**
+     * Returns the socket address.
+     * 
+     * @return socket address
+     */
+    public InetSocketAddress getAddress()
+    {
+        return this.address;
+    }
+    
+    /**
+     * Checks for ipv4 addresses.
+     * 
+     * @return {@code true} for ipv4 addresses
+     */
+    public boolean isIPv4()
+    {
+        return this.address.getAddress() instanceof Inet4Address;
+    }
+    
+    /**
+     * Returns the encoded size.
+     * 
+     * @return encoded size
+     */
+    public int encodedSize()
+    {
+        return this.encoded.length;
+    }
+    
+    /**
+     * Writes the encoded address.
+     * 
+     * @param target
+     *            target buffer
+     */
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeBytes(this.encoded);
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return this.address.hashCode();
+    }
+    
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass())
+        {
+            return false;
+        }
+        return this.address.equals(((SystemAddress) obj).address);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return this.address.toString();
+    }
+    
+}
@@ -19,23 +19,51 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
 
 /**
  * Abstract base class that can be used for raknet messages.
  * 
+ * <p>
+ * Targeted messages are reference counted. Incoming messages parsed in view mode keep a retained slice of the datagram content and read some of their fields on demand; the
+ * slice is released together with the message. Handlers that keep a message beyond the current pipeline invocation must retain it.
+ * </p>
+ * 
  * @author mepeisen
  *        
  */
-public abstract class TargetedMessage extends BaseMessage
+public abstract class TargetedMessage extends BaseMessage implements ReferenceCounted
 {
     
+    /** the reference counter updater */
+    private static final AtomicIntegerFieldUpdater<TargetedMessage> REFCNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(TargetedMessage.class, "refCnt"); //$NON-NLS-1$
+    
+    /** the reference counter */
+    private volatile int refCnt = 1;
+    
+    /** the retained datagram content in view mode; {@code null} if this message is not a view */
+    private ByteBuf view;
+    
+    /** the reader index of the datagram content the view starts at */
+    private int viewBase;
+    
     /** the sender */
-    private final InetSocketAddress sender;
+    private InetSocketAddress sender;
     
     /** the receiver */
-    private final InetSocketAddress receiver;
+    private InetSocketAddress receiver;
+    
+    /**
+     * Constructor for recyclable messages; the message must be initialized by calling one of the init methods.
+     */
+    protected TargetedMessage()
+    {
+        // empty
+    }
     
     /**
      * Constructor for outgoing messages.
@@ -55,10 +83,35 @@ public abstract class TargetedMessage extends BaseMessage
      * @param receiver message receiver
      */
     public TargetedMessage(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        this(buf, sender, receiver, false);
+    }
+    
+    /**
+     * Constructor for messages with targets
+     * @param buf incoming data
+     * @param sender message sender
+     * @param receiver message receiver
+     * @param view {@code true} to keep a retained slice of the incoming data instead of copying byte arrays
+     */
+    public TargetedMessage(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver, boolean view)
     {
         this.sender = sender;
         this.receiver = receiver;
-        this.parseMessage(buf);
+        if (view)
+        {
+            this.viewBase = buf.readerIndex();
+            this.view = buf.slice().retain();
+        }
+        try
+        {
+            this.parseMessage(buf);
+        }
+        catch (RuntimeException ex)
+        {
+            this.deallocate();
+            throw ex;
+        }
     }
     
     /**
@@ -67,6 +120,193 @@ public abstract class TargetedMessage extends BaseMessage
      */
     protected abstract void parseMessage(ByteBuf buf);
     
+    /**
+     * Initializes a recycled message for outgoing traffic.
+     * @param sender message sender.
+     * @param receiver message receiver.
+     */
+    protected final void init(InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        this.refCnt = 1;
+        this.sender = sender;
+        this.receiver = receiver;
+    }
+    
+    /**
+     * Initializes a recycled message from incoming data.
+     * @param buf incoming data
+     * @param sender message sender.
+     * @param receiver message receiver.
+     */
+    protected final void init(ByteBuf buf, InetSocketAddress sender, InetSocketAddress receiver)
+    {
+        this.init(sender, receiver);
+        try
+        {
+            this.parseMessage(buf);
+        }
+        catch (RuntimeException ex)
+        {
+            this.release();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Resets the message state before a recycled message is returned to its pool. Subclasses must clear their own fields.
+     */
+    protected void reset()
+    {
+        this.sender = null;
+        this.receiver = null;
+    }
+    
+    /**
+     * Checks if this message is a view of the incoming datagram.
+     * @return {@code true} if this message still holds a retained slice of the incoming data
+     */
+    public boolean isView()
+    {
+        return this.view != null;
+    }
+    
+    /**
+     * Skips the given amount of bytes during parsing in view mode.
+     * @param buf incoming data
+     * @param length number of bytes to skip
+     * @return the offset of the skipped bytes within the view
+     */
+    protected int skipView(ByteBuf buf, int length)
+    {
+        final int offset = buf.readerIndex() - this.viewBase;
+        buf.skipBytes(length);
+        return offset;
+    }
+    
+    /**
+     * Returns a slice of the view without copying.
+     * @param offset offset within the view
+     * @param length number of bytes
+     * @return slice; only valid until this message is released
+     * @throws IllegalReferenceCountException thrown if the message was already released
+     */
+    protected ByteBuf viewSlice(int offset, int length)
+    {
+        if (this.view == null)
+        {
+            throw new IllegalReferenceCountException(0);
+        }
+        return this.view.slice(offset, length);
+    }
+    
+    /**
+     * Copies bytes from the view.
+     * @param offset offset within the view
+     * @param length number of bytes
+     * @return the copied bytes
+     * @throws IllegalReferenceCountException thrown if the message was already released
+     */
+    protected byte[] viewBytes(int offset, int length)
+    {
+        if (this.view == null)
+        {
+            throw new IllegalReferenceCountException(0);
+        }
+        final byte[] result = new byte[length];
+        this.view.getBytes(offset, result);
+        return result;
+    }
+    
+    /**
+     * Invoked once the reference count dropped to zero; releases the view.
+     */
+    protected void deallocate()
+    {
+        final ByteBuf buf = this.view;
+        if (buf != null)
+        {
+            this.view = null;
+            buf.release();
+        }
+    }
+    
+    @Override
+    public int refCnt()
+    {
+        return this.refCnt;
+    }
+    
+    @Override
+    public TargetedMessage retain()
+    {
+        return this.retain(1);
+    }
+    
+    @Override
+    public TargetedMessage retain(int increment)
+    {
+        if (increment <= 0)
+        {
+            throw new IllegalArgumentException("increment: " + increment + " (expected: > 0)"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        for (;;)
+        {
+            final int cnt = this.refCnt;
+            if (cnt == 0 || cnt > Integer.MAX_VALUE - increment)
+            {
+                throw new IllegalReferenceCountException(cnt, increment);
+            }
+            if (REFCNT_UPDATER.compareAndSet(this, cnt, cnt + increment))
+            {
+                return this;
+            }
+        }
+    }
+    
+    @Override
+    public TargetedMessage touch()
+    {
+        return this;
+    }
+    
+    @Override
+    public TargetedMessage touch(Object hint)
+    {
+        return this;
+    }
+    
+    @Override
+    public boolean release()
+    {
+        return this.release(1);
+    }
+    
+    @Override
+    public boolean release(int decrement)
+    {
+        if (decrement <= 0)
+        {
+            throw new IllegalArgumentException("decrement: " + decrement + " (expected: > 0)"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        for (;;)
+        {
+            final int cnt = this.refCnt;
+            if (cnt < decrement)
+            {
+                throw new IllegalReferenceCountException(cnt, -decrement);
+            }
+            if (REFCNT_UPDATER.compareAndSet(this, cnt, cnt - decrement))
+            {
+                if (cnt == decrement)
+                {
+                    this.deallocate();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+    
     /**
      * @return the sender
      */
@@ -18,10 +18,11 @@
 package eu.xworlds.util.raknet.protocol;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteOrder;
 
+import eu.xworlds.util.raknet.codec.Magic;
+import eu.xworlds.util.raknet.codec.RaknetCodec;
+import eu.xworlds.util.raknet.codec.Time;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 /**
  * Message "UnconnectedPingOpenConnections".
@@ -34,6 +35,7 @@ import io.netty.buffer.Unpooled;
  * 
  * @author mepeisen
  */
+@RaknetCodec
 public class UnconnectedPingOpenConnections extends TargetedMessage
 {
     
@@ -41,10 +43,12 @@ public class UnconnectedPingOpenConnections extends TargetedMessage
     public static final byte ID = 0x02;
     
     /** the ping timestamp */
-    private long time;
+    @Time
+    long time;
     
     /** the magic */
-    private byte[] magic;
+    @Magic
+    byte[] magic;
     
     /**
      * Constructor for incoming message.
@@ -74,23 +78,22 @@ public class UnconnectedPingOpenConnections extends TargetedMessage
     }
     
     @Override
-    public ByteBuf encode()
+    public int encodedSize()
     {
-
-        final ByteBuf result = Unpooled.buffer(1 + SIZE_TIME + this.magic.length);
-        result.order(ByteOrder.BIG_ENDIAN);
-        result.writeByte(ID);
-        writeTime(result, this.time);
-        result.writeBytes(this.magic);
-        return result;
+        return 1 + UnconnectedPingOpenConnectionsCodec.encodedSize(this);
+    }
+    
+    @Override
+    public void encodeTo(ByteBuf target)
+    {
+        target.writeByte(ID);
+        UnconnectedPingOpenConnectionsCodec.encodeTo(this, target);
     }
     
     @Override
     protected void parseMessage(ByteBuf buf)
     {
-        this.time = readTime(buf);
-        this.magic = new byte[MAGIC_BYTES];
-        buf.readBytes(this.magic.length);
+        UnconnectedPingOpenConnectionsCodec.parse(this, buf);
     }
 
     @Override